@@ -0,0 +1,366 @@
+package jijimaku;
+
+import static com.atilika.kuromoji.unidic.compile.DictionaryEntry.WRITTEN_BASE_FORM;
+import static com.atilika.kuromoji.unidic.compile.DictionaryEntry.WRITTEN_FORM;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.atilika.kuromoji.unidic.Token;
+import com.atilika.kuromoji.unidic.Tokenizer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import jijimaku.models.DictionaryMatch;
+import jijimaku.models.ServicesParam;
+import jijimaku.services.AnnotationFilter;
+import jijimaku.services.AnnotationService;
+import jijimaku.services.jijidictionary.JijiDictionary;
+import jijimaku.services.jijidictionary.JijiDictionaryEntry;
+import jijimaku.services.langparser.DictionaryScanParser;
+import jijimaku.services.langparser.JapaneseParser;
+import jijimaku.services.langparser.LangParser;
+import jijimaku.services.langparser.LangParser.PosTag;
+import jijimaku.services.langparser.LangParser.TextToken;
+import jijimaku.utils.FileManager;
+import jijimaku.utils.SubtitleFile;
+import jijimaku.utils.SubtitleTemplate;
+import jijimaku.workers.WorkerInitialize;
+
+
+/**
+ * Compare the speed and the words found by the kuromoji parser and the lite parser on some subtitle files.
+ * Usage: gradle benchmarkParsers -Pfiles=file1.srt,file2.ass
+ *
+ * <p>The words found by a parser in a caption are its tokens that are dictionary lemmas,
+ * the words of the lite parser are compared to the words of kuromoji which is the reference.
+ * Disable the parseCache option to measure the kuromoji parse and not the cache.
+ * The reading of the kuromoji token features is measured apart, with the token getters as the previous
+ * parse did and from one features array per token as JapaneseParser does.
+ *
+ * <p>The kuromoji tokens are then segmented into dictionary matches, by AnnotationService and by the previous
+ * greedy segmentation, on the captions and on long lines(several captions joined like long signs or song lyrics).
+ * The matches are filtered by AnnotationFilter and by the previous filter using regular expressions and lists.
+ *
+ * <p>The benchmark is a source set of its own so that it and the previous implementations it measures
+ * are not shipped in the application jar.
+ */
+class ParserBenchmark {
+  private static final Logger LOGGER;
+
+  static {
+    System.setProperty("logDir", FileManager.getLogsDirectory());
+    LOGGER = LogManager.getLogger();
+  }
+
+  private static final String CONFIG_FILE = "config.yaml";
+  private static final String MISSING_FORM = "*";
+  // See JapaneseParser.FEATURES_OFFSET
+  private static final int FEATURES_OFFSET = 4;
+  private static final Pattern IS_HIRAGANA_RE = Pattern.compile("^\\p{InHiragana}+$");
+  private static final Pattern IS_KATAKANA_RE = Pattern.compile("^\\p{InKatakana}+$");
+  private static final EnumSet<PosTag> POS_TAGS_IGNORE_WORD = EnumSet.of(
+      PosTag.PART, PosTag.DET, PosTag.CCONJ, PosTag.SCONJ, PosTag.AUX
+  );
+  // The first rounds are not measured, to let the JIT compile the parsers
+  private static final int WARMUP_ROUNDS = 2;
+  private static final int ROUNDS = 5;
+  // Number of captions joined in a long line
+  private static final int LONG_LINE_CAPTIONS = 20;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      LOGGER.error("Give the subtitle files to parse, e.g. gradle benchmarkParsers -Pfiles=file1.srt,file2.ass");
+      return;
+    }
+
+    ServicesParam services = new WorkerInitialize(CONFIG_FILE).doInBackground();
+    AppConfig config = services.getConfig();
+    JijiDictionary dict = services.getDictionary();
+    if (config.getParseCache()) {
+      LOGGER.warn("The parseCache option is on, kuromoji timings measure the parse cache.");
+    }
+
+    SubtitleTemplate template = new SubtitleTemplate(config.getSubtitleStyles());
+    List<String> captions = new ArrayList<>();
+    for (String fileName : args) {
+      File file = new File(fileName);
+      String fileContents = FileManager.fileAnyEncodingToString(file);
+      captions.addAll(new SubtitleFile(file.getName(), fileContents, template).getCaptionTexts());
+    }
+    LOGGER.info("Parsing {} captions from {} files", captions.size(), args.length);
+
+    LangParser kuromojiParser = services.getParser() instanceof JapaneseParser
+        ? services.getParser()
+        : new JapaneseParser(config);
+    long start = System.nanoTime();
+    LangParser liteParser = services.getParser() instanceof DictionaryScanParser
+        ? services.getParser()
+        : new DictionaryScanParser(dict);
+    LOGGER.info("Lite parser built in {} ms", (System.nanoTime() - start) / 1000000);
+
+    LOGGER.info("kuromoji: {} ms per round", measure(() -> captions.forEach(kuromojiParser::syntaxicParse)));
+    LOGGER.info("lite: {} ms per round", measure(() -> captions.forEach(liteParser::syntaxicParse)));
+    compareTokenReadings(captions);
+
+    // Match quality: words of the lite parser that kuromoji found too
+    AnnotationFilter filter = new AnnotationFilter(config);
+    int kuromojiWords = 0;
+    int liteWords = 0;
+    int sharedWords = 0;
+    for (String caption : captions) {
+      Set<String> kuromojiCaptionWords = getWords(kuromojiParser.syntaxicParse(caption), dict, filter);
+      Set<String> liteCaptionWords = getWords(liteParser.syntaxicParse(caption), dict, filter);
+      kuromojiWords += kuromojiCaptionWords.size();
+      liteWords += liteCaptionWords.size();
+      liteCaptionWords.retainAll(kuromojiCaptionWords);
+      sharedWords += liteCaptionWords.size();
+    }
+    LOGGER.info("Words found: kuromoji {}, lite {}, both {}", kuromojiWords, liteWords, sharedWords);
+    LOGGER.info("lite finds {}% of the kuromoji words, {}% of the lite words are kuromoji words",
+        percent(sharedWords, kuromojiWords), percent(sharedWords, liteWords));
+
+    // Segmentation of the kuromoji tokens into dictionary matches
+    AnnotationService annotationService = new AnnotationService(services);
+    Function<List<TextToken>, List<DictionaryMatch>> segmentation = getSegmentation(annotationService);
+    List<List<TextToken>> captionsTokens = new ArrayList<>();
+    captions.forEach(caption -> captionsTokens.add(kuromojiParser.syntaxicParse(caption)));
+    List<List<TextToken>> longLinesTokens = new ArrayList<>();
+    for (int i = 0; i < captions.size(); i += LONG_LINE_CAPTIONS) {
+      String longLine = String.join(" ", captions.subList(i, Math.min(i + LONG_LINE_CAPTIONS, captions.size())));
+      longLinesTokens.add(kuromojiParser.syntaxicParse(longLine));
+    }
+    compareSegmentations("captions", captionsTokens, segmentation, dict, filter);
+    compareSegmentations("long lines", longLinesTokens, segmentation, dict, filter);
+
+    // Filtering of the matches
+    List<List<DictionaryMatch>> captionsMatches = new ArrayList<>();
+    captionsTokens.forEach(tokens -> captionsMatches.add(segmentation.apply(tokens)));
+    compareFilters(captionsMatches, config, filter);
+    annotationService.close();
+    kuromojiParser.close();
+    liteParser.close();
+  }
+
+  /**
+   * Run something several times.
+   * @return the average time of a round in ms
+   */
+  private static long measure(Runnable round) {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      round.run();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      round.run();
+    }
+    return (System.nanoTime() - start) / ROUNDS / 1000000;
+  }
+
+  /**
+   * Compare the speed of reading the features of the kuromoji tokens with the token getters and from the features array.
+   * The captions are tokenized once beforehand(without the proper nouns), only the reading is measured.
+   */
+  private static void compareTokenReadings(List<String> captions) {
+    Tokenizer tokenizer = new Tokenizer.Builder().build();
+    LOGGER.info("kuromoji tokenization alone: {} ms per round", measure(() -> captions.forEach(tokenizer::tokenize)));
+    List<List<Token>> captionsTokens = new ArrayList<>();
+    captions.forEach(caption -> captionsTokens.add(tokenizer.tokenize(caption)));
+    LOGGER.info("Reading of the token features: getters {} ms per round, features array {} ms per round",
+        measure(() -> captionsTokens.forEach(ParserBenchmark::readTokensWithGetters)),
+        measure(() -> captionsTokens.forEach(ParserBenchmark::readTokensWithFeatures)));
+  }
+
+  /**
+   * The previous reading of the tokens: each getter splits the features string of the token again,
+   * and the features of the token are split again as the previous features.
+   * @return the length of the forms read, so that the reading is not optimized away
+   */
+  private static int readTokensWithGetters(List<Token> tokens) {
+    int length = 0;
+    for (int idx = 0; idx < tokens.size(); idx++) {
+      Token token = tokens.get(idx);
+      String[] features = token.getAllFeaturesArray();
+      String[] previousFeatures = idx == 0 ? null : token.getAllFeaturesArray();
+      String writtenForm = !token.getWrittenForm().equals(MISSING_FORM) ? token.getWrittenForm() : token.getSurface();
+      String writtenBaseForm = !token.getWrittenBaseForm().equals(MISSING_FORM) ? token.getWrittenBaseForm() : null;
+      length += features[0].length() + (previousFeatures != null ? previousFeatures[0].length() : 0)
+          + writtenForm.length() + (writtenBaseForm != null ? writtenBaseForm.length() : 0);
+    }
+    return length;
+  }
+
+  /**
+   * The reading of JapaneseParser: the features string of each token is split once.
+   */
+  private static int readTokensWithFeatures(List<Token> tokens) {
+    String[][] features = new String[tokens.size()][];
+    for (int idx = 0; idx < tokens.size(); idx++) {
+      features[idx] = tokens.get(idx).getAllFeaturesArray();
+    }
+    int length = 0;
+    for (int idx = 0; idx < tokens.size(); idx++) {
+      String[] previousFeatures = idx == 0 ? null : features[idx - 1];
+      String writtenForm = features[idx].length > WRITTEN_FORM - FEATURES_OFFSET
+          ? features[idx][WRITTEN_FORM - FEATURES_OFFSET]
+          : MISSING_FORM;
+      if (writtenForm.equals(MISSING_FORM)) {
+        writtenForm = tokens.get(idx).getSurface();
+      }
+      String writtenBaseForm = features[idx].length > WRITTEN_BASE_FORM - FEATURES_OFFSET
+          ? features[idx][WRITTEN_BASE_FORM - FEATURES_OFFSET]
+          : MISSING_FORM;
+      if (writtenBaseForm.equals(MISSING_FORM)) {
+        writtenBaseForm = null;
+      }
+      length += features[idx][0].length() + (previousFeatures != null ? previousFeatures[0].length() : 0)
+          + writtenForm.length() + (writtenBaseForm != null ? writtenBaseForm.length() : 0);
+    }
+    return length;
+  }
+
+  /**
+   * The segmentation of AnnotationService is private, call it by reflection to measure it alone.
+   */
+  @SuppressWarnings("unchecked") // getDictionaryMatches returns a List<DictionaryMatch>
+  private static Function<List<TextToken>, List<DictionaryMatch>> getSegmentation(AnnotationService annotationService)
+      throws NoSuchMethodException {
+    Method getDictionaryMatches = AnnotationService.class.getDeclaredMethod("getDictionaryMatches", List.class);
+    getDictionaryMatches.setAccessible(true);
+    return tokens -> {
+      try {
+        return (List<DictionaryMatch>) getDictionaryMatches.invoke(annotationService, tokens);
+      } catch (ReflectiveOperationException exc) {
+        throw new IllegalStateException(exc);
+      }
+    };
+  }
+
+  /**
+   * Compare the speed and the matches of the AnnotationService segmentation with the greedy segmentation.
+   */
+  private static void compareSegmentations(String name, List<List<TextToken>> linesTokens,
+                                           Function<List<TextToken>, List<DictionaryMatch>> segmentation,
+                                           JijiDictionary dict, AnnotationFilter filter) {
+    int greedyMatches = 0;
+    int matches = 0;
+    for (List<TextToken> tokens : linesTokens) {
+      greedyMatches += getGreedyDictionaryMatches(tokens, dict, filter).size();
+      matches += segmentation.apply(tokens).size();
+    }
+    LOGGER.info("Segmentation of {} {}: greedy {} ms per round({} matches), dynamic programming {} ms per round({} matches)",
+        linesTokens.size(), name,
+        measure(() -> linesTokens.forEach(tokens -> getGreedyDictionaryMatches(tokens, dict, filter))), greedyMatches,
+        measure(() -> linesTokens.forEach(segmentation::apply)), matches);
+  }
+
+  /**
+   * The previous segmentation: at each token, search the longest sequence of tokens with a definition
+   * by removing tokens from the end of the caption one by one.
+   */
+  private static List<DictionaryMatch> getGreedyDictionaryMatches(List<TextToken> captionTokens, JijiDictionary dict,
+                                                                  AnnotationFilter filter) {
+    List<DictionaryMatch> matches = new ArrayList<>();
+    while (!captionTokens.isEmpty()) {
+      if (filter.isSkippedToken(captionTokens.get(0))) {
+        captionTokens = captionTokens.subList(1, captionTokens.size());
+        continue;
+      }
+      List<TextToken> maximumTokens = new ArrayList<>(captionTokens);
+      DictionaryMatch match = getGreedyDictionaryMatch(maximumTokens, dict);
+      while (match == null && maximumTokens.size() > 0) {
+        maximumTokens = maximumTokens.subList(0, maximumTokens.size() - 1);
+        match = getGreedyDictionaryMatch(maximumTokens, dict);
+      }
+      if (match == null || (match.getTextForm().length() <= 3 && IS_HIRAGANA_RE.matcher(match.getTextForm()).matches()
+          && !match.hasVerb())) {
+        captionTokens = captionTokens.subList(1, captionTokens.size());
+        continue;
+      }
+      matches.add(match);
+      captionTokens = captionTokens.subList(match.getTokens().size(), captionTokens.size());
+    }
+    return matches;
+  }
+
+  /**
+   * Compare the speed and the decisions of AnnotationFilter with the filter using regular expressions and lists.
+   */
+  private static void compareFilters(List<List<DictionaryMatch>> captionsMatches, AppConfig config, AnnotationFilter filter) {
+    int matches = 0;
+    int differences = 0;
+    for (List<DictionaryMatch> captionMatches : captionsMatches) {
+      for (DictionaryMatch match : captionMatches) {
+        matches++;
+        if (isDisplayedByListFilter(match, config) != filter.isDisplayed(match)) {
+          differences++;
+        }
+      }
+    }
+    LOGGER.info("Filtering of {} matches: lists and regular expressions {} ms per round, AnnotationFilter {} ms per round,"
+        + " {} different decisions", matches,
+        measure(() -> captionsMatches.forEach(captionMatches -> captionMatches.forEach(m -> isDisplayedByListFilter(m, config)))),
+        measure(() -> captionsMatches.forEach(captionMatches -> captionMatches.forEach(filter::isDisplayed))),
+        differences);
+  }
+
+  /**
+   * The previous filter, reading the config lists and matching regular expressions for each match.
+   */
+  private static boolean isDisplayedByListFilter(DictionaryMatch match, AppConfig config) {
+    if (match.getTokens().stream().allMatch(t -> POS_TAGS_IGNORE_WORD.contains(t.getPartOfSpeech()))) {
+      return false;
+    }
+    List<String> ignoreWords = config.getIgnoreWords();
+    if (ignoreWords.contains(match.getTextForm()) || ignoreWords.contains(match.getCanonicalForm())) {
+      return false;
+    }
+    if ((IS_HIRAGANA_RE.matcher(match.getTextForm()).matches() || IS_KATAKANA_RE.matcher(match.getTextForm()).matches())
+        && !match.hasVerb()) {
+      return false;
+    }
+    return !match.getDictionaryEntries().stream().allMatch(de -> config.getIgnoreFrequencies().contains(de.getFrequency()));
+  }
+
+  private static DictionaryMatch getGreedyDictionaryMatch(List<TextToken> tokens, JijiDictionary dict) {
+    if (tokens.isEmpty()) {
+      return null;
+    }
+    String canonicalForm = tokens.stream().map(TextToken::getCanonicalForm).collect(Collectors.joining(""));
+    List<JijiDictionaryEntry> entries = dict.search(canonicalForm);
+    if (entries.isEmpty()) {
+      String textForm = tokens.stream().map(TextToken::getTextForm).collect(Collectors.joining(""));
+      entries = dict.search(textForm);
+    }
+    if (entries.isEmpty() && canonicalForm.length() > 1) {
+      entries = dict.searchByPronunciation(canonicalForm);
+    }
+    return entries.isEmpty() ? null : new DictionaryMatch(tokens, entries);
+  }
+
+  /**
+   * Return the canonical forms of the tokens of a caption that are dictionary lemmas.
+   */
+  private static Set<String> getWords(List<TextToken> tokens, JijiDictionary dict, AnnotationFilter filter) {
+    Set<String> words = new HashSet<>();
+    for (TextToken token : tokens) {
+      if (!filter.isSkippedToken(token) && !dict.search(token.getCanonicalForm()).isEmpty()) {
+        words.add(token.getCanonicalForm());
+      }
+    }
+    return words;
+  }
+
+  private static long percent(int count, int total) {
+    return total > 0 ? Math.round(100.0 * count / total) : 0;
+  }
+}
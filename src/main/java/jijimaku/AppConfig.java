@@ -9,6 +9,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import jijimaku.utils.SubtitleFile;
 import org.apache.logging.log4j.LogManager;
@@ -37,12 +38,27 @@ public class AppConfig {
       + "Style: " + SubtitleFile.SubStyle.Default + ",Arial,28,16777215,16777215,0,2147483648,0,0,0,0,100,100,0,0,1,2,2,2,20,20,15,0";
 
 
+  public static final String DICTIONARY_MODE_MAPPED = "mapped";
+  public static final String DICTIONARY_MODE_PAGED = "paged";
+  private static final List<String> DICTIONARY_MODES = Arrays.asList(DICTIONARY_MODE_MAPPED, DICTIONARY_MODE_PAGED);
+
+  public static final String PARSER_MODE_KUROMOJI = "kuromoji";
+  public static final String PARSER_MODE_LITE = "lite";
+  private static final List<String> PARSER_MODES = Arrays.asList(PARSER_MODE_KUROMOJI, PARSER_MODE_LITE);
+
   // Yaml properties
   private final String configFilePath;
   private final Map<String, Object> configMap;
 
   // Jijimaku config values
   private final String dictionary;
+  private final String dictionaryMode;
+  private final Integer dictionaryCacheSize;
+  private final Integer definitionCacheSize;
+  private final Integer captionCacheSize;
+  private final Integer annotationThreads;
+  private final String parserMode;
+  private final Boolean parseCache;
   private final Integer definitionSize;
   private final List<String> highlightColors;
   private final Boolean displayOtherLemma;
@@ -51,6 +67,7 @@ public class AppConfig {
 
   private final String assStyles;
   private final Map<String, String> properNouns;
+  private final String properNounsFile;
 
 
   /**
@@ -72,13 +89,29 @@ public class AppConfig {
 
     // TODO: check type of array values(not done on cast)
     dictionary = getConfigValue("dictionary", String.class);
+    dictionaryMode = getConfigValue("dictionaryMode", String.class);
+    if (dictionaryMode != null && !DICTIONARY_MODES.contains(dictionaryMode)) {
+      LOGGER.error("Invalid dictionaryMode {} in config file {}, it must be one of {}", dictionaryMode, configFilePath, DICTIONARY_MODES);
+      throw new UnexpectedError();
+    }
+    dictionaryCacheSize = getSizeConfigValue("dictionaryCacheSize", 1);
+    definitionCacheSize = getSizeConfigValue("definitionCacheSize", 0);
+    captionCacheSize = getSizeConfigValue("captionCacheSize", 0);
+    annotationThreads = getSizeConfigValue("annotationThreads", 0);
+    parserMode = getConfigValue("parserMode", String.class);
+    if (parserMode != null && !PARSER_MODES.contains(parserMode)) {
+      LOGGER.error("Invalid parserMode {} in config file {}, it must be one of {}", parserMode, configFilePath, PARSER_MODES);
+      throw new UnexpectedError();
+    }
+    parseCache = getConfigValue("parseCache", Boolean.class);
     definitionSize = getConfigValue("definitionSize", Integer.class);
     highlightColors = getConfigValue("highlightColors", (new ArrayList<String>()).getClass());
     displayOtherLemma = getConfigValue("displayOtherLemma", Boolean.class);
     ignoreFrequencies = getConfigValue("ignoreFrequencies", (new ArrayList<Integer>()).getClass());
     ignoreWords = getConfigValue("ignoreWords", (new ArrayList<String>()).getClass());
 
-    properNouns = new HashMap<>();  // Ignore fo now
+    properNouns = getStringMapConfigValue("properNouns");
+    properNounsFile = getConfigValue("properNounsFile", String.class);
     assStyles = getConfigValue("assStyles", String.class);
   }
 
@@ -102,6 +135,54 @@ public class AppConfig {
     }
   }
 
+  /**
+   * Get a config value that maps strings to strings.
+   * The generic types of a map are not checked by a cast, so each key and value is checked here.
+   * @return the config value, or null if missing from config.
+   */
+  private Map<String, String> getStringMapConfigValue(String paramKey) {
+    Map<?, ?> configValue = getConfigValue(paramKey, Map.class);
+    if (configValue == null) {
+      return null;
+    }
+    Map<String, String> stringMap = new HashMap<>();
+    for (Map.Entry<?, ?> entry : configValue.entrySet()) {
+      if (!(entry.getKey() instanceof String) || !(entry.getValue() instanceof String)) {
+        LOGGER.error("Config parameter {} in file {} is not in the expected format: {} must be a text mapped to a text.",
+            paramKey, configFilePath, entry.getKey());
+        throw new UnexpectedError();
+      }
+      stringMap.put((String) entry.getKey(), (String) entry.getValue());
+    }
+    return stringMap;
+  }
+
+  /**
+   * Get a size config value(cache size...) and check that it is not below some minimum.
+   * @return the config value, or null if missing from config.
+   */
+  private Integer getSizeConfigValue(String paramKey, int minimum) {
+    Integer size = getConfigValue(paramKey, Integer.class);
+    if (size != null && size < minimum) {
+      LOGGER.error("Config parameter {} in file {} must be at least {}.", paramKey, configFilePath, minimum);
+      throw new UnexpectedError();
+    }
+    return size;
+  }
+
+  /**
+   * Description of the config values that change the annotated files, it changes whenever one of them changes.
+   * Options that only change how fast files are annotated(threads, caches, dictionary and parser modes) are left out.
+   */
+  public String getAnnotationDescription() {
+    return "subtitleStyles: " + getSubtitleStyles()
+        + "\nhighlightColors: " + getHighlightColors()
+        + "\ndisplayOtherLemma: " + getDisplayOtherLemma()
+        + "\nignoreFrequencies: " + getIgnoreFrequencies()
+        + "\nignoreWords: " + getIgnoreWords()
+        + "\nproperNouns: " + new TreeMap<>(getProperNouns());
+  }
+
   /**
    * Name of the dictionary file used to source words definitions.
    * The dictionary file must follow the JIJI format => https://github.com/juliango202/jiji
@@ -111,6 +192,61 @@ public class AppConfig {
   }
 
 
+  /**
+   * How the dictionary is served once compiled.
+   * - mapped(default): the compiled dictionary is memory mapped
+   * - paged: only the index is kept in memory, definitions are read from disk when needed
+   */
+  public String getDictionaryMode() {
+    return dictionaryMode != null ? dictionaryMode : DICTIONARY_MODE_MAPPED;
+  }
+
+  /**
+   * In paged mode, number of dictionary entries kept in memory once read.
+   */
+  public Integer getDictionaryCacheSize() {
+    return dictionaryCacheSize != null ? dictionaryCacheSize : 5000;
+  }
+
+  /**
+   * Number of rendered definitions kept in memory to speed up the annotation(0 to disable).
+   */
+  public Integer getDefinitionCacheSize() {
+    return definitionCacheSize != null ? definitionCacheSize : 5000;
+  }
+
+  /**
+   * Number of caption annotations kept in memory to reuse them for repeated captions(0 to disable).
+   */
+  public Integer getCaptionCacheSize() {
+    return captionCacheSize != null ? captionCacheSize : 2000;
+  }
+
+  /**
+   * Number of threads annotating the captions of a subtitle file(0 to use all the processors).
+   */
+  public Integer getAnnotationThreads() {
+    return annotationThreads != null && annotationThreads > 0
+        ? annotationThreads
+        : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * How captions are cut into words.
+   * - kuromoji(default): grammatical analysis of the captions with kuromoji
+   * - lite: captions are scanned for the dictionary words as they are written, without grammatical analysis
+   */
+  public String getParserMode() {
+    return parserMode != null ? parserMode : PARSER_MODE_KUROMOJI;
+  }
+
+  /**
+   * Flag to keep the parse of captions in a cache file, so that annotating the same subtitles again is faster.
+   */
+  public Boolean getParseCache() {
+    return parseCache != null ? parseCache : true;
+  }
+
   /**
    * Font-size to use when writing dictionary definitions.
    */
@@ -170,8 +306,18 @@ public class AppConfig {
     );
   }
 
+  /**
+   * Proper nouns(characters, places...) with their pronunciation, to help the parser recognize them.
+   */
   public Map<String,String> getProperNouns() {
-    return properNouns;
+    return properNouns != null ? properNouns : new HashMap<>();
+  }
+
+  /**
+   * Name of a file listing proper nouns with their pronunciation, one per line. Return null if missing from config.
+   */
+  public String getProperNounsFile() {
+    return properNounsFile;
   }
 }
 
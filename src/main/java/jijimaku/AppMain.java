@@ -79,6 +79,8 @@ class AppMain {
       if ("state".equals(evt.getPropertyName()) && evt.getNewValue() == StateValue.DONE) {
         try {
           services = initializer.get();
+          // The app exits from several places(quit button, window close, errors), close the parser files on exit
+          Runtime.getRuntime().addShutdownHook(new Thread(services.getParser()::close));
           initialized = true;
           setState(searchDirectory != null ? AppState.ANNOTATE_SUBTITLES : AppState.WAIT_FOR_DIRECTORY_CHOICE);
         } catch (InterruptedException exc) {
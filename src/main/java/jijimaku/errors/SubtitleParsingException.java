@@ -0,0 +1,11 @@
+package jijimaku.errors;
+
+/**
+ * A subtitle file that cannot be read at all(no caption...).
+ */
+@SuppressWarnings("serial")
+public class SubtitleParsingException extends Exception {
+  public SubtitleParsingException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,158 @@
+package jijimaku.services;
+
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import jijimaku.AppConfig;
+import jijimaku.models.DictionaryMatch;
+import jijimaku.services.jijidictionary.JijiDictionaryEntry;
+import jijimaku.services.langparser.LangParser;
+import jijimaku.services.langparser.LangParser.TextToken;
+
+
+/**
+ * Rules deciding which tokens and dictionary matches are annotated.
+ * The rules are compiled once from the user preferences: ignored frequencies in a bitmask,
+ * ignored words in a hash set, POS tags in enum sets and kana detection with a script table,
+ * so that checking a match does not depend on the size of the config lists.
+ */
+public class AnnotationFilter {
+
+  // POS tag that does not represent words
+  private static final EnumSet<LangParser.PosTag> POS_TAGS_NOT_WORD = EnumSet.of(
+          LangParser.PosTag.PUNCT,
+          LangParser.PosTag.SYM,
+          LangParser.PosTag.NUM,
+          LangParser.PosTag.X
+  );
+
+  private static final EnumSet<LangParser.PosTag> POS_TAGS_IGNORE_WORD = EnumSet.of(
+          LangParser.PosTag.PART,
+          LangParser.PosTag.DET,
+          LangParser.PosTag.CCONJ,
+          LangParser.PosTag.SCONJ,
+          LangParser.PosTag.AUX
+  );
+
+  // Tokens that cannot start a dictionary match
+  private static final EnumSet<LangParser.PosTag> POS_TAGS_SKIP = EnumSet.copyOf(POS_TAGS_NOT_WORD);
+
+  static {
+    POS_TAGS_SKIP.addAll(POS_TAGS_IGNORE_WORD);
+  }
+
+  // Script of the chars in the Hiragana and Katakana unicode blocks(same as \p{InHiragana} and \p{InKatakana})
+  private static final int HIRAGANA = 1;
+  private static final int KATAKANA = 2;
+  private static final char KANA_BLOCKS_START = '\u3040';
+  private static final byte[] KANA_SCRIPTS = new byte['\u30FF' - KANA_BLOCKS_START + 1];
+
+  static {
+    for (char c = KANA_BLOCKS_START; c <= '\u30FF'; c++) {
+      KANA_SCRIPTS[c - KANA_BLOCKS_START] = (byte) (c < '\u30A0' ? HIRAGANA : KATAKANA);
+    }
+  }
+
+  private final BitSet ignoreFrequencies;
+  private final Set<String> ignoreWords;
+
+  public AnnotationFilter(AppConfig config) {
+    ignoreFrequencies = new BitSet();
+    for (Integer frequency : config.getIgnoreFrequencies()) {
+      // Dictionary frequencies are positive
+      if (frequency > 0) {
+        ignoreFrequencies.set(frequency);
+      }
+    }
+    ignoreWords = new HashSet<>(config.getIgnoreWords());
+  }
+
+  /**
+   * Return the scripts shared by all the chars of a text, 0 if the text is empty or not all kana.
+   */
+  private static int kanaScripts(String text) {
+    if (text.isEmpty()) {
+      return 0;
+    }
+    int scripts = HIRAGANA | KATAKANA;
+    for (int i = 0; i < text.length() && scripts != 0; i++) {
+      int idx = text.charAt(i) - KANA_BLOCKS_START;
+      scripts &= idx >= 0 && idx < KANA_SCRIPTS.length ? KANA_SCRIPTS[idx] : 0;
+    }
+    return scripts;
+  }
+
+  public static boolean isHiragana(String text) {
+    return (kanaScripts(text) & HIRAGANA) != 0;
+  }
+
+  public static boolean isKana(String text) {
+    return kanaScripts(text) != 0;
+  }
+
+  /**
+   * Return true if a token is not a word or should be ignored, so no dictionary match starts with it.
+   */
+  public boolean isSkippedToken(TextToken token) {
+    return POS_TAGS_SKIP.contains(token.getPartOfSpeech());
+  }
+
+  /**
+   * Do not accept a match if it is a short sequence of hiragana
+   * because it is most likely a wrong grouping of independent grammar conjunctions
+   * and unlikely to be an unusual word that needs to be defined
+   * (but make an exception for verbs).
+   */
+  public boolean isValidMatch(String textForm, List<TextToken> tokens) {
+    return textForm.length() > 3 || !isHiragana(textForm) || hasVerb(tokens);
+  }
+
+  private static boolean hasVerb(List<TextToken> tokens) {
+    for (TextToken token : tokens) {
+      if (token.getPartOfSpeech() == LangParser.PosTag.VERB) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return true if a DictionaryMatch should be displayed depending on user preferences.
+   */
+  public boolean isDisplayed(DictionaryMatch match) {
+    // Ignore unimportant grammatical words
+    boolean allIgnored = true;
+    for (TextToken token : match.getTokens()) {
+      if (!POS_TAGS_IGNORE_WORD.contains(token.getPartOfSpeech())) {
+        allIgnored = false;
+        break;
+      }
+    }
+    if (allIgnored) {
+      return false;
+    }
+
+    // Ignore user words list
+    String textForm = match.getTextForm();
+    if (ignoreWords.contains(textForm) || ignoreWords.contains(match.getCanonicalForm())) {
+      return false;
+    }
+
+    // For now ignore all-kana matches except if there is a verb
+    if (isKana(textForm) && !hasVerb(match.getTokens())) {
+      return false;
+    }
+
+    // Filter using ignoreFrequency option
+    for (JijiDictionaryEntry entry : match.getDictionaryEntries()) {
+      Integer frequency = entry.getFrequency();
+      if (frequency == null || !ignoreFrequencies.get(frequency)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
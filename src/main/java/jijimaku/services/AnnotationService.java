@@ -2,144 +2,246 @@ package jijimaku.services;
 
 import jijimaku.AppConfig;
 import jijimaku.utils.SubtitleFile;
+import jijimaku.utils.SubtitleTemplate;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.EnumSet;
 import java.util.List;
 import java.util.Objects;
-import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import jijimaku.errors.SubtitleParsingException;
 import jijimaku.models.DictionaryMatch;
 import jijimaku.models.ServicesParam;
 import jijimaku.services.jijidictionary.JijiDictionary;
 import jijimaku.services.jijidictionary.JijiDictionaryEntry;
 import jijimaku.services.langparser.LangParser;
 import jijimaku.services.langparser.LangParser.TextToken;
+import jijimaku.utils.FileManager;
+import jijimaku.utils.LruCache;
 
-import subtitleFile.FatalParsingException;
 
 
 /**
  * Created by julian on 11/23/17.
  */
 public class AnnotationService {
+  private static final Logger LOGGER;
+
+  static {
+    System.setProperty("logDir", FileManager.getLogsDirectory());
+    LOGGER = LogManager.getLogger();
+  }
 
-  private static final Pattern IS_HIRAGANA_RE = Pattern.compile("^\\p{InHiragana}+$");
-  private static final Pattern IS_KATAKANA_RE = Pattern.compile("^\\p{InKatakana}+$");
-
-  // POS tag that does not represent words
-  private static final EnumSet<LangParser.PosTag> POS_TAGS_NOT_WORD = EnumSet.of(
-          LangParser.PosTag.PUNCT,
-          LangParser.PosTag.SYM,
-          LangParser.PosTag.NUM,
-          LangParser.PosTag.X
-  );
-
-  private static final EnumSet<LangParser.PosTag> POS_TAGS_IGNORE_WORD = EnumSet.of(
-          LangParser.PosTag.PART,
-          LangParser.PosTag.DET,
-          LangParser.PosTag.CCONJ,
-          LangParser.PosTag.SCONJ,
-          LangParser.PosTag.AUX
-  );
+  // Number of captions parsed together when captions are annotated in parallel
+  private static final int CAPTIONS_PER_BATCH = 32;
 
   private final AppConfig config;
   private final LangParser langParser;
   private final JijiDictionary dict;
-  private final List<String> ignoreWordsList;
+  private final AnnotationFilter filter;
+  // Styles and Jijimaku mark shared by all the annotated files
+  private final SubtitleTemplate subtitleTemplate;
+  private final LruCache<DefinitionKey, String> definitionCache;
+  private final LruCache<String, CaptionAnnotation> captionCache;
+  // Pool to annotate the captions of a file in parallel, null to annotate them sequentially
+  private final ForkJoinPool pool;
+  // Token forms are never empty(see TextToken) so a match has at most as many tokens as the longest dictionary key has chars
+  private final int maxMatchTokens;
 
   public AnnotationService(ServicesParam services) {
     config = services.getConfig();
     langParser = services.getParser();
     dict = services.getDictionary();
-    ignoreWordsList = config.getIgnoreWords();
+    filter = new AnnotationFilter(config);
+    subtitleTemplate = new SubtitleTemplate(config.getSubtitleStyles());
+    definitionCache = config.getDefinitionCacheSize() > 0 ? new LruCache<>(config.getDefinitionCacheSize()) : null;
+    captionCache = config.getCaptionCacheSize() > 0 ? new LruCache<>(config.getCaptionCacheSize()) : null;
+    pool = config.getAnnotationThreads() > 1 ? new ForkJoinPool(config.getAnnotationThreads()) : null;
+    maxMatchTokens = Math.max(dict.getMaxLemmaLength(), dict.getMaxPronunciationLength());
   }
 
   /**
-   * Search a list of tokens in the dictionary.
-   *
-   * @return a DictionaryMatch entry if the provided tokens match a definition, null otherwise.
+   * Stop the annotation threads, the service cannot annotate anymore afterwards.
    */
-  private DictionaryMatch dictionaryMatch(List<TextToken> tokens) {
-    if (tokens.isEmpty()) {
-      return null;
+  public void close() {
+    if (pool != null) {
+      pool.shutdown();
     }
+  }
 
-    String canonicalForm = tokens.stream().map(TextToken::getCanonicalForm).collect(Collectors.joining(""));
-    List<JijiDictionaryEntry> entries = dict.search(canonicalForm);
+  /**
+   * Return the rendered definitions cache(for statistics), or null if it is disabled.
+   */
+  public LruCache<?, ?> getDefinitionCache() {
+    return definitionCache;
+  }
+
+  /**
+   * Return the caption annotations cache(for statistics), or null if it is disabled.
+   */
+  public LruCache<?, ?> getCaptionCache() {
+    return captionCache;
+  }
 
-    // If there is no entry for the canonical form, search the exact text
-    if (entries.isEmpty()) {
-      String textForm = tokens.stream().map(TextToken::getTextForm).collect(Collectors.joining(""));
-      entries = dict.search(textForm);
+  /**
+   * Caption tokens joined in their canonical and text forms,
+   * with the offset where each token starts in the joined strings(plus the end of the last one).
+   */
+  private static class JoinedTokens {
+    private final String canonical;
+    private final String text;
+    private final int[] canonicalOffsets;
+    private final int[] textOffsets;
+
+    JoinedTokens(List<TextToken> tokens) {
+      StringBuilder canonicalBuilder = new StringBuilder();
+      StringBuilder textBuilder = new StringBuilder();
+      canonicalOffsets = new int[tokens.size() + 1];
+      textOffsets = new int[tokens.size() + 1];
+      for (int i = 0; i < tokens.size(); i++) {
+        canonicalOffsets[i] = canonicalBuilder.length();
+        textOffsets[i] = textBuilder.length();
+        canonicalBuilder.append(tokens.get(i).getCanonicalForm());
+        textBuilder.append(tokens.get(i).getTextForm());
+      }
+      canonicalOffsets[tokens.size()] = canonicalBuilder.length();
+      textOffsets[tokens.size()] = textBuilder.length();
+      canonical = canonicalBuilder.toString();
+      text = textBuilder.toString();
     }
+  }
 
-    // If still no entry, search for the pronunciation
-    // In Japanese sometimes words with kanji are written in kanas for emphasis or simplicity
-    // and we want to catch those. Except for one character strings where there are too many results
-    // for this to be relevant.
-    if (entries.isEmpty() && canonicalForm.length() > 1) {
-      entries = dict.searchByPronunciation(canonicalForm);
+  /**
+   * Store the entries of prefix matches that end on a token boundary, by number of tokens in the match.
+   * Token forms are never empty so the token offsets strictly increase, and at most one sequence ends with a match.
+   */
+  private static void alignPrefixMatches(List<JijiDictionary.PrefixMatch> prefixMatches, int[] offsets, int start,
+                                         List<List<JijiDictionaryEntry>> entriesByLength) {
+    int length = 1;
+    for (JijiDictionary.PrefixMatch prefixMatch : prefixMatches) {
+      // Matches are ordered by increasing length, so are the token sequences
+      while (length < entriesByLength.size() && offsets[start + length] < prefixMatch.getEnd()) {
+        length++;
+      }
+      if (length == entriesByLength.size()) {
+        return;
+      }
+      if (offsets[start + length] == prefixMatch.getEnd()) {
+        entriesByLength.set(length, prefixMatch.getEntries());
+      }
     }
+  }
 
-    if (entries.isEmpty()) {
-      return null;
-    } else {
-      return new DictionaryMatch(tokens, entries);
+  private static List<List<JijiDictionaryEntry>> noMatches(int maxLength) {
+    return new ArrayList<>(Collections.nCopies(maxLength + 1, null));
+  }
+
+  /**
+   * Search all the sequences of tokens starting at some index that match a dictionary definition.
+   * All the candidate sequences are found with one prefix search per form, instead of one lookup per sequence length.
+   *
+   * @return the definitions matching the sequence of each length(index 0 is unused), null where there is no match.
+   */
+  private List<List<JijiDictionaryEntry>> dictionaryMatches(List<TextToken> tokens, JoinedTokens joined, int start) {
+    int maxLength = Math.min(tokens.size() - start, maxMatchTokens);
+    List<List<JijiDictionaryEntry>> canonicalEntries = noMatches(maxLength);
+    List<List<JijiDictionaryEntry>> textEntries = noMatches(maxLength);
+    List<List<JijiDictionaryEntry>> pronunciationEntries = noMatches(maxLength);
+    alignPrefixMatches(dict.commonPrefixSearch(joined.canonical, joined.canonicalOffsets[start]),
+        joined.canonicalOffsets, start, canonicalEntries);
+    alignPrefixMatches(dict.commonPrefixSearch(joined.text, joined.textOffsets[start]),
+        joined.textOffsets, start, textEntries);
+    alignPrefixMatches(dict.commonPrefixSearchByPronunciation(joined.canonical, joined.canonicalOffsets[start]),
+        joined.canonicalOffsets, start, pronunciationEntries);
+
+    for (int length = 1; length <= maxLength; length++) {
+      // Prefer the canonical form, then the exact text
+      if (canonicalEntries.get(length) == null) {
+        canonicalEntries.set(length, textEntries.get(length));
+      }
+
+      // Then the pronunciation
+      // In Japanese sometimes words with kanji are written in kanas for emphasis or simplicity
+      // and we want to catch those. Except for one character strings where there are too many results
+      // for this to be relevant.
+      if (canonicalEntries.get(length) == null
+          && joined.canonicalOffsets[start + length] - joined.canonicalOffsets[start] > 1) {
+        canonicalEntries.set(length, pronunciationEntries.get(length));
+      }
     }
+    return canonicalEntries;
   }
 
   /**
-   * Return all the dictionary matches for one caption.
+   * Return all the dictionary matches for the tokens of one caption.
    * For example the parsed sentence => I|think|he|made|it|up should likely return four
    * DictionaryMatches => I|to think|he|to make it up
    */
-  private List<DictionaryMatch> getDictionaryMatches(String caption) {
-    // A syntaxic parse of the caption returns a list of tokens.
-    List<TextToken> captionTokens = langParser.syntaxicParse(caption);
+  private List<DictionaryMatch> getDictionaryMatches(List<TextToken> captionTokens) {
+    JoinedTokens joined = new JoinedTokens(captionTokens);
+    int tokensCount = captionTokens.size();
 
     // Next we must group tokens together if they is a corresponding definition in the dictionary.
-    List<DictionaryMatch> matches = new ArrayList<>();
-    while (!captionTokens.isEmpty()) {
+    // Segment the caption backwards: for each index keep the best segmentation of the remaining tokens,
+    // the one that covers the most tokens with matches and then uses the fewest(longest) matches.
+    // A match is never longer than the longest dictionary key so this is linear in the number of tokens.
+    int[] coveredTokens = new int[tokensCount + 1];
+    int[] matchesCount = new int[tokensCount + 1];
+    DictionaryMatch[] bestMatches = new DictionaryMatch[tokensCount + 1];
+    for (int idx = tokensCount - 1; idx >= 0; idx--) {
+      // By default the token is not part of a match
+      coveredTokens[idx] = coveredTokens[idx + 1];
+      matchesCount[idx] = matchesCount[idx + 1];
 
       // Skip token that are not words or should be ignored
-      if (POS_TAGS_NOT_WORD.contains(captionTokens.get(0).getPartOfSpeech())
-          || POS_TAGS_IGNORE_WORD.contains(captionTokens.get(0).getPartOfSpeech())) {
-        captionTokens = captionTokens.subList(1, captionTokens.size());
+      if (filter.isSkippedToken(captionTokens.get(idx))) {
         continue;
       }
 
-      // Find the next DictionaryMatch
-      // Start with all tokens and remove one by one until we have a match
-      List<TextToken> maximumTokens = new ArrayList<>(captionTokens);
-      DictionaryMatch match = dictionaryMatch(maximumTokens);
-      while (match == null && maximumTokens.size() > 0) {
-        maximumTokens = maximumTokens.subList(0, maximumTokens.size() - 1);
-        match = dictionaryMatch(maximumTokens);
-      }
+      // Try all the sequences of tokens with a definition, longest first so that it wins ties
+      List<List<JijiDictionaryEntry>> entriesByLength = dictionaryMatches(captionTokens, joined, idx);
+      for (int length = entriesByLength.size() - 1; length > 0; length--) {
+        if (entriesByLength.get(length) == null) {
+          continue;
+        }
+        int end = idx + length;
+        int covered = length + coveredTokens[end];
+        int count = 1 + matchesCount[end];
+        if (covered < coveredTokens[idx] || (covered == coveredTokens[idx] && count >= matchesCount[idx])) {
+          continue;
+        }
 
-      if (match == null) {
-        // We could not find a match for current token, just remove it
-        captionTokens = captionTokens.subList(1, captionTokens.size());
-        continue;
-      }
+        // Do not accept short sequences of hiragana, see AnnotationFilter.isValidMatch
+        List<TextToken> matchTokens = captionTokens.subList(idx, end);
+        String textForm = joined.text.substring(joined.textOffsets[idx], joined.textOffsets[end]);
+        if (!filter.isValidMatch(textForm, matchTokens)) {
+          continue;
+        }
 
-      // Do not accept the match if it is a short sequence of hiragana
-      // because it is most likely a wrong grouping of independent grammar conjunctions
-      // and unlikely to be an unusual word that needs to be defined
-      // (but make an exception for verbs)
-      if (match.getTextForm().length() <= 3 && IS_HIRAGANA_RE.matcher(match.getTextForm()).matches() && !match.hasVerb()) {
-        captionTokens = captionTokens.subList(1, captionTokens.size());
-        continue;
+        coveredTokens[idx] = covered;
+        matchesCount[idx] = count;
+        bestMatches[idx] = new DictionaryMatch(matchTokens, entriesByLength.get(length));
       }
+    }
 
-      matches.add(match);
-      captionTokens = captionTokens.subList(match.getTokens().size(), captionTokens.size());
-
+    // Follow the best segmentation from the caption start
+    List<DictionaryMatch> matches = new ArrayList<>();
+    int idx = 0;
+    while (idx < tokensCount) {
+      if (bestMatches[idx] == null) {
+        idx++;
+      } else {
+        matches.add(bestMatches[idx]);
+        idx += bestMatches[idx].getTokens().size();
+      }
     }
     return matches;
   }
@@ -147,108 +249,219 @@ public class AnnotationService {
   /**
    * Filter the DictionaryMatches to display depending on user preferences.
    */
-  private List<DictionaryMatch> getFilteredMatches(String caption) {
-    List<DictionaryMatch> allMatches = getDictionaryMatches(caption);
-    return allMatches.stream().filter(dm -> {
-
-      // Ignore unimportant grammatical words
-      if (dm.getTokens().stream().allMatch(t -> POS_TAGS_IGNORE_WORD.contains(t.getPartOfSpeech()))) {
-        return false;
-      }
+  private List<DictionaryMatch> getFilteredMatches(List<TextToken> captionTokens) {
+    return getDictionaryMatches(captionTokens).stream().filter(filter::isDisplayed).collect(Collectors.toList());
+  }
 
-      // Ignore user words list
-      if (ignoreWordsList.contains(dm.getTextForm()) || ignoreWordsList.contains(dm.getCanonicalForm())) {
-        return false;
-      }
+  /**
+   * Key of a rendered definition: the same entry is rendered differently depending on the matched forms and color.
+   */
+  private static class DefinitionKey {
+    private final JijiDictionaryEntry entry;
+    private final String canonicalForm;
+    private final String textForm;
+    private final String color;
+
+    DefinitionKey(JijiDictionaryEntry entry, String canonicalForm, String textForm, String color) {
+      this.entry = entry;
+      this.canonicalForm = canonicalForm;
+      this.textForm = textForm;
+      this.color = color;
+    }
 
-      // For now ignore all-kana matches except if there is a verb
-      if((IS_HIRAGANA_RE.matcher(dm.getTextForm()).matches() || IS_KATAKANA_RE.matcher(dm.getTextForm()).matches())
-          && !dm.hasVerb()) {
-        return false;
+    @Override
+    public boolean equals(Object otherObj) {
+      if (this == otherObj) {
+        return true;
       }
-
-      // Filter using ignoreFrequency option
-      if (dm.getDictionaryEntries().stream().allMatch(de -> config.getIgnoreFrequencies().contains(de.getFrequency()))) {
+      if (otherObj == null || getClass() != otherObj.getClass()) {
         return false;
       }
+      DefinitionKey otherKey = (DefinitionKey) otherObj;
+      return entry.equals(otherKey.entry) && canonicalForm.equals(otherKey.canonicalForm)
+          && textForm.equals(otherKey.textForm) && color.equals(otherKey.color);
+    }
 
-      return true;
-    }).collect(Collectors.toList());
+    @Override
+    public int hashCode() {
+      return Objects.hash(entry, canonicalForm, textForm, color);
+    }
   }
 
   private List<String> annotateDictionaryMatch(DictionaryMatch match, String color) {
-    Boolean displayOtherLemma = config.getDisplayOtherLemma();
+    String canonicalForm = match.getCanonicalForm();
+    String textForm = match.getTextForm();
     List<String> tokenDefs = new ArrayList<>();
     for (JijiDictionaryEntry def : match.getDictionaryEntries()) {
-      // Each definition is made of several lemmas and several senses
-      // Depending on "displayOtherLemma" option, display only the lemma corresponding to the subtitle word, or all lemmas
-      String lemmas = def.getLemmas().stream().map(l -> {
-        if (l.equals(match.getCanonicalForm()) || l.equals(match.getTextForm())) {
-          return SubtitleFile.addStyleToText(l, SubtitleFile.TextStyle.COLOR, color);
-        } else if (displayOtherLemma) {
-          return l;
-        } else {
-          return null;
-        }
-      }).filter(Objects::nonNull).collect(Collectors.joining(", "));
-      // We don't know which sense corresponds to the subtitle so we can't do the same unfortunately ^^
-      // => just concat all senses
-      List<String> senses = def.getSenses();
-      // Represent language level with unicode characters ①, ②, ③, ④, ...
-      String langLevelStr = " ";
-      if (def.getFrequency() != null) {
-        String langLevelChar = Character.toString((char) ("①".charAt(0) + (def.getFrequency() - 1)));
-        langLevelStr = " " + SubtitleFile.addStyleToText(langLevelChar, SubtitleFile.TextStyle.BOLD) + " ";
-      }
-
-      String pronounciationStr = "";
-      if (def.getPronounciation() != null) {
-        // Do not display pronounciation information if it is already present in lemmas
-        boolean inLemma = def.getPronounciation().stream().anyMatch(lemmas::contains);
-        if (!inLemma) {
-          pronounciationStr = " [" + String.join(", ", def.getPronounciation()) + "] ";
-          // If text word is not in lemma, the match must come from pronounciation => colorize
-          if (!lemmas.contains(match.getCanonicalForm()) && !lemmas.contains(match.getTextForm())) {
-            pronounciationStr = SubtitleFile.addStyleToText(pronounciationStr, SubtitleFile.TextStyle.COLOR, color);
-          }
+      if (definitionCache == null) {
+        tokenDefs.add(renderDefinition(def, canonicalForm, textForm, color));
+        continue;
+      }
+      // The same words are defined over and over in a subtitle, reuse the definitions already rendered
+      DefinitionKey key = new DefinitionKey(def, canonicalForm, textForm, color);
+      String definition = definitionCache.get(key);
+      if (definition == null) {
+        definition = renderDefinition(def, canonicalForm, textForm, color);
+        definitionCache.put(key, definition);
+      }
+      tokenDefs.add(definition);
+    }
+    return tokenDefs;
+  }
+
+  private String renderDefinition(JijiDictionaryEntry def, String canonicalForm, String textForm, String color) {
+    // Each definition is made of several lemmas and several senses
+    // Depending on "displayOtherLemma" option, display only the lemma corresponding to the subtitle word, or all lemmas
+    Boolean displayOtherLemma = config.getDisplayOtherLemma();
+    String lemmas = def.getLemmas().stream().map(l -> {
+      if (l.equals(canonicalForm) || l.equals(textForm)) {
+        return SubtitleFile.addStyleToText(l, SubtitleFile.TextStyle.COLOR, color);
+      } else if (displayOtherLemma) {
+        return l;
+      } else {
+        return null;
+      }
+    }).filter(Objects::nonNull).collect(Collectors.joining(", "));
+    // We don't know which sense corresponds to the subtitle so we can't do the same unfortunately ^^
+    // => just concat all senses
+    List<String> senses = def.getSenses();
+    // Represent language level with unicode characters ①, ②, ③, ④, ...
+    String langLevelStr = " ";
+    if (def.getFrequency() != null) {
+      String langLevelChar = Character.toString((char) ("①".charAt(0) + (def.getFrequency() - 1)));
+      langLevelStr = " " + SubtitleFile.addStyleToText(langLevelChar, SubtitleFile.TextStyle.BOLD) + " ";
+    }
+
+    String pronounciationStr = "";
+    if (def.getPronounciation() != null) {
+      // Do not display pronounciation information if it is already present in lemmas
+      boolean inLemma = def.getPronounciation().stream().anyMatch(lemmas::contains);
+      if (!inLemma) {
+        pronounciationStr = " [" + String.join(", ", def.getPronounciation()) + "] ";
+        // If text word is not in lemma, the match must come from pronounciation => colorize
+        if (!lemmas.contains(canonicalForm) && !lemmas.contains(textForm)) {
+          pronounciationStr = SubtitleFile.addStyleToText(pronounciationStr, SubtitleFile.TextStyle.COLOR, color);
         }
       }
+    }
 
-      tokenDefs.add("★ " + lemmas + pronounciationStr + langLevelStr + String.join(" --- ", senses));
+    return "★ " + lemmas + pronounciationStr + langLevelStr + String.join(" --- ", senses);
+  }
+
+  /**
+   * Annotations found for one caption: the words to colorize with their offset in the caption text and their color,
+   * and the definitions to display.
+   * It is not modified once computed because it can be cached and shared by several captions.
+   */
+  private static class CaptionAnnotation {
+    private final List<String> words = new ArrayList<>();
+    private final List<Integer> offsets = new ArrayList<>();
+    private final List<String> colors = new ArrayList<>();
+    private final List<String> annotations = new ArrayList<>();
+  }
+
+  /**
+   * Lookup definitions in a parsed caption.
+   */
+  private CaptionAnnotation annotateCaption(String captionText, List<TextToken> captionTokens) {
+    CaptionAnnotation captionAnnotation = new CaptionAnnotation();
+    List<String> colors = new ArrayList<>(config.getHighlightColors());
+    // Matches are in text order, look for each one after the previous one so that a word is highlighted where
+    // it was matched and not at an earlier occurrence
+    int textOffset = 0;
+    for (DictionaryMatch match : getFilteredMatches(captionTokens)) {
+      String textForm = match.getTextForm();
+      int matchOffset = captionText.indexOf(textForm, textOffset);
+      if (matchOffset >= 0) {
+        textOffset = matchOffset + textForm.length();
+      } else {
+        // The parser may return a written form that differs from the text(e.g. a normalized spelling)
+        LOGGER.debug("Word {} not found after offset {} in caption {}, it will not be highlighted", textForm, textOffset, captionText);
+      }
+      if (captionAnnotation.words.contains(textForm)) {
+        continue;
+      }
+      String color = colors.iterator().next();
+      List<String> tokenDefs = annotateDictionaryMatch(match, color);
+      if (!tokenDefs.isEmpty()) {
+        captionAnnotation.annotations.addAll(tokenDefs);
+        // Set a different color for words that are defined
+        captionAnnotation.words.add(textForm);
+        captionAnnotation.offsets.add(matchOffset);
+        captionAnnotation.colors.add(color);
+        Collections.rotate(colors, -1);
+      }
+    }
+    return captionAnnotation;
+  }
+
+  /**
+   * Parse a batch of captions with one parser call and lookup their definitions.
+   * This only reads shared state(or synchronized caches) so batches can be annotated concurrently.
+   * @param captionIndexes indexes of the captions of the batch, their annotations are stored at the same index
+   */
+  private void annotateBatch(List<String> captionTexts, List<Integer> captionIndexes, CaptionAnnotation[] annotations) {
+    List<String> batchTexts = new ArrayList<>(captionIndexes.size());
+    for (int idx : captionIndexes) {
+      batchTexts.add(captionTexts.get(idx));
+    }
+    List<List<TextToken>> batchTokens = langParser.syntaxicParseAll(batchTexts);
+    for (int i = 0; i < captionIndexes.size(); i++) {
+      CaptionAnnotation captionAnnotation = annotateCaption(batchTexts.get(i), batchTokens.get(i));
+      annotations[captionIndexes.get(i)] = captionAnnotation;
+      if (captionCache != null) {
+        captionCache.put(batchTexts.get(i), captionAnnotation);
+      }
     }
-    return tokenDefs;
+  }
+
+  /**
+   * Annotate all the captions of a file.
+   * Captions are parsed by batches, on the annotation pool if there is one.
+   * @return the annotations in captions order.
+   */
+  private List<CaptionAnnotation> annotateCaptions(List<String> texts) {
+    // Songs and recurring lines repeat across the episodes of a series, reuse the annotations already found.
+    // Highlight colors restart for each caption so the annotations only depend on the caption text.
+    CaptionAnnotation[] annotations = new CaptionAnnotation[texts.size()];
+    List<Integer> toAnnotate = new ArrayList<>();
+    for (int idx = 0; idx < texts.size(); idx++) {
+      annotations[idx] = captionCache != null ? captionCache.get(texts.get(idx)) : null;
+      if (annotations[idx] == null) {
+        toAnnotate.add(idx);
+      }
+    }
+
+    if (pool == null) {
+      annotateBatch(texts, toAnnotate, annotations);
+    } else {
+      List<ForkJoinTask<?>> tasks = new ArrayList<>();
+      for (int start = 0; start < toAnnotate.size(); start += CAPTIONS_PER_BATCH) {
+        List<Integer> batch = toAnnotate.subList(start, Math.min(toAnnotate.size(), start + CAPTIONS_PER_BATCH));
+        tasks.add(pool.submit(() -> annotateBatch(texts, batch, annotations)));
+      }
+      tasks.forEach(ForkJoinTask::join);
+    }
+    return Arrays.asList(annotations);
   }
 
   /**
    * Parse a subtitle file and add annotation if dictionary definitions were found.
+   * Captions are annotated first(by batches, possibly in parallel), then the results are applied to the file
+   * in captions order so that the output does not depend on the number of threads.
    *
-   * @return true if at least one annotation was added, false otherwise.
+   * @return the annotated subtitle, or null if no annotation was added.
    */
-  public String[] annotateSubtitleFile(String fileName, String fileContents) throws IOException, FatalParsingException {
-    SubtitleFile subtitle = new SubtitleFile(fileName, fileContents, config.getSubtitleStyles());
+  public SubtitleFile annotateSubtitleFile(String fileName, String fileContents) throws IOException, SubtitleParsingException {
+    SubtitleFile subtitle = new SubtitleFile(fileName, fileContents, subtitleTemplate);
 
     // Loop through the subtitle file captions one by one
-    while (subtitle.hasNext()) {
-      String currentCaptionText = subtitle.nextCaption();
-      List<String> colors = new ArrayList<>(config.getHighlightColors());
-
-      // Parse subtitle and lookup definitions
-      List<String> alreadyDefinedWords = new ArrayList<>();
-      List<String> annotations = new ArrayList<>();
-      for (DictionaryMatch match : getFilteredMatches(currentCaptionText)) {
-        String color = colors.iterator().next();
-        List<String> tokenDefs = annotateDictionaryMatch(match, color);
-        if (!tokenDefs.isEmpty() && !alreadyDefinedWords.contains(match.getTextForm())) {
-          annotations.addAll(tokenDefs);
-          // Set a different color for words that are defined
-          subtitle.colorizeCaptionWord(match.getTextForm(), color);
-          Collections.rotate(colors, -1);
-          alreadyDefinedWords.add(match.getTextForm());
-        }
-      }
-      subtitle.annotate(annotations);
+    for (CaptionAnnotation captionAnnotation : annotateCaptions(subtitle.getCaptionTexts())) {
+      subtitle.nextCaption();
+      subtitle.colorizeCaptionWords(captionAnnotation.words, captionAnnotation.offsets, captionAnnotation.colors);
+      subtitle.annotate(captionAnnotation.annotations);
     }
 
-    return subtitle.getNbCaptionAnnotated() == 0 ? null : subtitle.toAssFormat();
+    return subtitle.getNbCaptionAnnotated() == 0 ? null : subtitle;
   }
 }
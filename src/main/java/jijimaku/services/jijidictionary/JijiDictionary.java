@@ -1,36 +1,43 @@
 package jijimaku.services.jijidictionary;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.AliasEvent;
+import org.yaml.snakeyaml.events.CollectionEndEvent;
+import org.yaml.snakeyaml.events.CollectionStartEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.MappingEndEvent;
+import org.yaml.snakeyaml.events.MappingStartEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.events.SequenceEndEvent;
+import org.yaml.snakeyaml.events.SequenceStartEvent;
+import org.yaml.snakeyaml.events.StreamEndEvent;
 
 import jijimaku.errors.UnexpectedError;
 import jijimaku.utils.FileManager;
-
-//private Trie atrie;
-//atrie = atrieBuilder.build();
-//final Trie.TrieBuilder atrieBuilder = Trie.builder().removeOverlaps();
-//public String getParse(String text) {
-//    Collection<Token> tokens = atrie.tokenize(text);
-//    String res = "";
-//    for (Token token : tokens) {
-//    if (token.isMatch()) {
-//    res += token.getFragment() + "|";
-//    } else {
-//    res += "*|";
-//    }
-//    }
-//    return res;
-//    }
+import jijimaku.utils.LruCache;
 
 // Simple XML SAX parser to load JMDict xml data into a java Hashmap
 @SuppressWarnings("checkstyle")
@@ -49,94 +56,481 @@ public class JijiDictionary {
   private static final String FREQUENCY_KEY = "frequency";
   private static final String LEMMAS_SPLIT_RE = "\\s*,\\s*";
   private static final String PRONUNCIATION_SPLIT_RE = "\\s*,\\s*";
+  // Number of top-level entries parsed together when loading from YAML
+  private static final int CHUNK_ENTRIES = 2000;
+
+  // Entries are stored in a compact arena and indexed by lemma and pronunciation,
+  // see JijiDictionaryArena & JijiDictionaryTrie
+  private final JijiDictionaryArena arena;
+  private final JijiDictionaryTrie lemmaTrie;
+  private final JijiDictionaryTrie pronunciationTrie;
 
-  private Map<String, List<JijiDictionaryEntry>> entriesByLemma = new HashMap<>();
-  private Map<String, List<JijiDictionaryEntry>> entriesByPronunciation = new HashMap<>();
+  // Only used while loading from YAML
+  private JijiDictionaryArena.Builder arenaBuilder;
+  private JijiDictionaryTrie.Builder lemmaTrieBuilder;
+  private JijiDictionaryTrie.Builder pronunciationTrieBuilder;
+  // Record of each key added so far, a key defined again replaces its previous entry
+  private Map<String, Integer> keyRecords;
 
-  @SuppressWarnings("unchecked")
+  /**
+   * Load a dictionary from a YAML file in the Jiji format.
+   * The file is read line by line and cut into chunks of top-level entries, each chunk is parsed
+   * as a small YAML document on a fork-join pool. Parsed chunks are then added to the dictionary
+   * in file order, so the result is the same as a sequential load.
+   * Only a few chunks are kept in memory at any time, the whole YAML document is never built.
+   * Because entries are parsed separately, YAML aliases(*name) are not supported, entries using them are rejected.
+   * As when loading the whole YAML mapping, a key defined several times only keeps its last definition.
+   */
   public JijiDictionary(File jijiDictFile) {
-    try {
-      Yaml yaml = new Yaml();
-      String yamlStr = FileManager.fileAnyEncodingToString(jijiDictFile);
-      Map<String, Object> yamlMap = (Map<String, Object>) yaml.load(yamlStr);
-      yamlMap.keySet().stream().forEach(key -> {
-        if (!key.equals(DICTIONARY_INFO_KEY)) {
-
-          // Parse a word entry
-          Map<String, Object> entryMap = (Map<String, Object>) yamlMap.get(key);
-
-          // Parse senses
-          List<String> senses = new ArrayList<>();
-          List<String> pronunciations = null;
-          if (entryMap.containsKey(SENSE_KEY)) {
-            senses.add((String)entryMap.get(SENSE_KEY));
-          } else if (entryMap.containsKey(SENSES_KEY)) {
-            senses.addAll((ArrayList<String>)entryMap.get(SENSES_KEY));
-          } else {
-            LOGGER.error("Jiji dictionary entry {} has no sense defined.", key);
-            return;
-          }
+    this(jijiDictFile, CHUNK_ENTRIES);
+  }
 
-          if (entryMap.containsKey(PRONUNCIATION_KEY)) {
-            String pronunciationStr = ((String)entryMap.get(PRONUNCIATION_KEY));
-            pronunciations = Arrays.asList(pronunciationStr.split(PRONUNCIATION_SPLIT_RE));
+  /**
+   * Load a dictionary from a YAML file, parsing a given number of entries per chunk.
+   */
+  JijiDictionary(File jijiDictFile, int chunkEntries) {
+    arenaBuilder = new JijiDictionaryArena.Builder();
+    lemmaTrieBuilder = new JijiDictionaryTrie.Builder();
+    pronunciationTrieBuilder = new JijiDictionaryTrie.Builder();
+    keyRecords = new HashMap<>();
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    try (BufferedReader reader = new BufferedReader(FileManager.fileAnyEncodingToReader(jijiDictFile))) {
+      Deque<ForkJoinTask<List<ParsedEntry>>> parsingChunks = new ArrayDeque<>();
+      int maxParsingChunks = 2 * pool.getParallelism() + 1;
+      StringBuilder chunk = new StringBuilder();
+      int entriesInChunk = 0;
+      TopLevelKeyScanner scanner = new TopLevelKeyScanner();
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        if (isDocumentMarker(line)) {
+          continue;
+        }
+        if (scanner.isTopLevelKey(line) && ++entriesInChunk > chunkEntries) {
+          parsingChunks.add(pool.submit(parseChunkTask(chunk.toString())));
+          chunk.setLength(0);
+          entriesInChunk = 1;
+          while (parsingChunks.size() > maxParsingChunks) {
+            addEntries(parsingChunks.poll().join());
           }
+        }
+        chunk.append(line).append('\n');
+      }
+      parsingChunks.add(pool.submit(parseChunkTask(chunk.toString())));
+      while (!parsingChunks.isEmpty()) {
+        addEntries(parsingChunks.poll().join());
+      }
+    } catch (IOException | YAMLException exc) {
+      LOGGER.error("Problem reading jijiDictFile {}", jijiDictFile.getAbsolutePath());
+      LOGGER.debug("Exception details", exc);
+      throw new UnexpectedError();
+    }
 
-          // Parse frequency
-          Integer frequency = entryMap.containsKey(FREQUENCY_KEY)
-              ? (Integer)entryMap.get(FREQUENCY_KEY)
-              : null;
-
-          // Create Jiji dictionary entry
-          List<String> lemmas = Arrays.asList(key.split(LEMMAS_SPLIT_RE));
-          JijiDictionaryEntry jijiEntry = new JijiDictionaryEntry(lemmas, frequency, senses, pronunciations);
-
-          // Index entries by lemma
-          for (String lemma : lemmas) {
-            if (!entriesByLemma.containsKey(lemma)) {
-              entriesByLemma.put(lemma, new ArrayList<>());
-            }
-            entriesByLemma.get(lemma).add(jijiEntry);
+    // Both tries only read the arena, build them concurrently
+    arena = arenaBuilder.build();
+    ForkJoinTask<JijiDictionaryTrie> pronunciationTrieTask = pool.submit(() -> pronunciationTrieBuilder.build(arena));
+    lemmaTrie = lemmaTrieBuilder.build(arena);
+    pronunciationTrie = pronunciationTrieTask.join();
+    arenaBuilder = null;
+    lemmaTrieBuilder = null;
+    pronunciationTrieBuilder = null;
+    keyRecords = null;
+  }
+
+  /**
+   * Serve the dictionary from a compiled snapshot(see JijiDictionarySnapshot).
+   */
+  public JijiDictionary(JijiDictionarySnapshot snapshot) {
+    arena = snapshot.getArena();
+    lemmaTrie = snapshot.getLemmaTrie();
+    pronunciationTrie = snapshot.getPronunciationTrie();
+  }
+
+  /**
+   * Document start/end markers and directives are dropped when cutting the file into chunks.
+   */
+  private static boolean isDocumentMarker(String line) {
+    return line.startsWith("---") || line.startsWith("...") || line.startsWith("%");
+  }
+
+  /**
+   * Find the lines starting a top-level entry while reading a YAML file line by line.
+   * In the Jiji format each entry is a key of the top-level mapping, the only lines that are not indented,
+   * but the lines continuing a quoted scalar may start in column 0 too. Quoted scalars are therefore followed
+   * from line to line. Block scalars and plain scalars continued on the next lines are skipped,
+   * so that a quote inside them is not taken for the start of a quoted scalar.
+   */
+  private static class TopLevelKeyScanner {
+    // Quote of the quoted scalar going on at the end of the last line, 0 if none
+    private char openQuote = 0;
+    // Number of flow collections([...] or {...}) open at the end of the last line
+    private int flowLevel = 0;
+    // Indentation of the last line if it started a block scalar or a plain scalar that may go on, -1 otherwise
+    private int scalarIndent = -1;
+
+    boolean isTopLevelKey(String line) {
+      int indent = 0;
+      while (indent < line.length() && Character.isWhitespace(line.charAt(indent))) {
+        indent++;
+      }
+      if (openQuote != 0 || flowLevel > 0) {
+        scanLine(line, 0, indent);
+        return false;
+      }
+      if (indent == line.length() || (scalarIndent >= 0 && indent > scalarIndent)) {
+        return false;
+      }
+      scalarIndent = -1;
+      if (line.charAt(indent) == '#') {
+        return false;
+      }
+      scanLine(line, indent, indent);
+      return indent == 0;
+    }
+
+    private void scanLine(String line, int start, int indent) {
+      // Whether a new scalar may start at the current position
+      boolean scalarStart = openQuote == 0;
+      boolean plainScalar = false;
+      for (int i = start; i < line.length(); i++) {
+        char c = line.charAt(i);
+        if (openQuote == '"') {
+          if (c == '\\') {
+            i++;
+          } else if (c == '"') {
+            openQuote = 0;
+          }
+        } else if (openQuote == '\'') {
+          if (c == '\'' && i + 1 < line.length() && line.charAt(i + 1) == '\'') {
+            i++;
+          } else if (c == '\'') {
+            openQuote = 0;
           }
+        } else if (c == '#' && (i == 0 || Character.isWhitespace(line.charAt(i - 1)))) {
+          break;
+        } else if (Character.isWhitespace(c)) {
+          continue;
+        } else if (scalarStart && (c == '"' || c == '\'')) {
+          openQuote = c;
+          plainScalar = false;
+        } else if (scalarStart && flowLevel == 0 && (c == '|' || c == '>')) {
+          scalarIndent = indent;
+          return;
+        } else if ((c == '-' || c == '?' || c == ':') && (i + 1 == line.length() || Character.isWhitespace(line.charAt(i + 1)))) {
+          scalarStart = true;
+          plainScalar = false;
+          continue;
+        } else if (scalarStart && (c == '[' || c == '{')) {
+          flowLevel++;
+          continue;
+        } else if (flowLevel > 0 && (c == ']' || c == '}')) {
+          flowLevel--;
+          plainScalar = false;
+        } else if (flowLevel > 0 && c == ',') {
+          scalarStart = true;
+          plainScalar = false;
+          continue;
+        } else {
+          plainScalar = true;
+        }
+        scalarStart = false;
+      }
+      if (plainScalar && flowLevel == 0) {
+        scalarIndent = indent;
+      }
+    }
+  }
+
+  private static Callable<List<ParsedEntry>> parseChunkTask(String chunk) {
+    return () -> {
+      List<ParsedEntry> entries = new ArrayList<>();
+      parseYaml(new StringReader(chunk), entries);
+      return entries;
+    };
+  }
+
+  private static void parseYaml(Reader reader, List<ParsedEntry> entries) {
+    Iterator<Event> events = new Yaml().parse(reader).iterator();
+
+    // Skip stream & document start until the top-level mapping
+    Event event = events.next();
+    while (!(event instanceof MappingStartEvent)) {
+      if (event instanceof StreamEndEvent) {
+        return;
+      }
+      event = events.next();
+    }
+
+    // Each key of the top-level mapping is a word entry
+    for (event = events.next(); !(event instanceof MappingEndEvent); event = events.next()) {
+      if (!(event instanceof ScalarEvent) || ((ScalarEvent) event).getValue().equals(DICTIONARY_INFO_KEY)) {
+        skipNode(event, events);
+        skipNode(events.next(), events);
+      } else {
+        // An invalid entry is kept too, it still replaces the previous definitions of its key
+        entries.add(parseEntry(((ScalarEvent) event).getValue(), events));
+      }
+    }
+  }
+
+  /**
+   * Parse the YAML mapping of one word entry.
+   * @return the parsed entry, without senses if the entry is invalid
+   */
+  private static ParsedEntry parseEntry(String key, Iterator<Event> events) {
+    Event event = events.next();
+    if (event instanceof AliasEvent) {
+      LOGGER.error("Jiji dictionary entry {} is a YAML alias, aliases are not supported.", key);
+      return new ParsedEntry(key);
+    }
+    if (!(event instanceof MappingStartEvent)) {
+      LOGGER.error("Jiji dictionary entry {} is not a mapping.", key);
+      skipNode(event, events);
+      return new ParsedEntry(key);
+    }
 
-          // Index entries by pronunciation
-          if (pronunciations != null) {
-            for (String pronunciation : pronunciations) {
-              if (!entriesByPronunciation.containsKey(pronunciation)) {
-                entriesByPronunciation.put(pronunciation, new ArrayList<>());
-              }
-              entriesByPronunciation.get(pronunciation).add(jijiEntry);
-            }
+    String sense = null;
+    List<String> senses = null;
+    String pronunciationStr = null;
+    Integer frequency = null;
+    boolean hasAlias = false;
+    for (event = events.next(); !(event instanceof MappingEndEvent); event = events.next()) {
+      String property = event instanceof ScalarEvent ? ((ScalarEvent) event).getValue() : null;
+      skipNode(event, events);
+      Event value = events.next();
+      if (value instanceof AliasEvent) {
+        hasAlias = true;
+      } else if (SENSE_KEY.equals(property) && value instanceof ScalarEvent) {
+        sense = ((ScalarEvent) value).getValue();
+      } else if (SENSES_KEY.equals(property) && value instanceof SequenceStartEvent) {
+        senses = new ArrayList<>();
+        for (value = events.next(); !(value instanceof SequenceEndEvent); value = events.next()) {
+          if (value instanceof ScalarEvent) {
+            senses.add(((ScalarEvent) value).getValue());
+          } else if (value instanceof AliasEvent) {
+            hasAlias = true;
+          } else {
+            skipNode(value, events);
           }
         }
-      });
-    } catch (IOException exc) {
-      LOGGER.error("Problem reading jijiDictFile {}", jijiDictFile.getAbsolutePath());
-      LOGGER.debug("Exception details", exc);
-      throw new UnexpectedError();
+      } else if (PRONUNCIATION_KEY.equals(property) && value instanceof ScalarEvent) {
+        pronunciationStr = ((ScalarEvent) value).getValue();
+      } else if (FREQUENCY_KEY.equals(property) && value instanceof ScalarEvent) {
+        try {
+          frequency = Integer.valueOf(((ScalarEvent) value).getValue());
+        } catch (NumberFormatException exc) {
+          LOGGER.error("Jiji dictionary entry {} has an invalid frequency.", key);
+        }
+      } else {
+        skipNode(value, events);
+      }
+    }
+
+    if (hasAlias) {
+      // The anchor may be in another chunk, entries are rejected whatever the chunk they are in
+      LOGGER.error("Jiji dictionary entry {} uses a YAML alias, aliases are not supported.", key);
+      return new ParsedEntry(key);
+    }
+    if (sense != null) {
+      senses = Collections.singletonList(sense);
+    } else if (senses == null) {
+      LOGGER.error("Jiji dictionary entry {} has no sense defined.", key);
+      return new ParsedEntry(key);
     }
+    List<String> pronunciations = pronunciationStr != null
+        ? Arrays.asList(pronunciationStr.split(PRONUNCIATION_SPLIT_RE))
+        : null;
+    List<String> lemmas = Arrays.asList(key.split(LEMMAS_SPLIT_RE));
+    return new ParsedEntry(key, lemmas, frequency, senses, pronunciations);
+  }
+
+  /**
+   * Consume the events of a YAML node that we don't need, given its first event.
+   * Sequence or mapping end events are consumed too.
+   */
+  private static void skipNode(Event event, Iterator<Event> events) {
+    int depth = 0;
+    while (true) {
+      if (event instanceof CollectionStartEvent) {
+        depth++;
+      } else if (event instanceof CollectionEndEvent) {
+        depth--;
+      }
+      if (depth <= 0) {
+        return;
+      }
+      event = events.next();
+    }
+  }
+
+  /**
+   * A dictionary entry as parsed from YAML, before it is stored in the arena.
+   * Invalid entries only have their key.
+   */
+  private static class ParsedEntry {
+    private final String key;
+    private final List<String> lemmas;
+    private final Integer frequency;
+    private final List<String> senses;
+    private final List<String> pronunciations;
+
+    ParsedEntry(String key) {
+      this(key, null, null, null, null);
+    }
+
+    ParsedEntry(String key, List<String> lemmas, Integer frequency, List<String> senses, List<String> pronunciations) {
+      this.key = key;
+      this.lemmas = lemmas;
+      this.frequency = frequency;
+      this.senses = senses;
+      this.pronunciations = pronunciations;
+    }
+  }
+
+  /**
+   * Store parsed Jiji dictionary entries in the arena and index them by lemma & pronunciation.
+   */
+  private void addEntries(List<ParsedEntry> entries) {
+    for (ParsedEntry entry : entries) {
+      Integer previousRecord = keyRecords.remove(entry.key);
+      if (previousRecord != null) {
+        // The previous entry stays in the arena, it is just not indexed anymore
+        LOGGER.warn("Jiji dictionary entry {} is defined several times, only the last definition is kept.", entry.key);
+        lemmaTrieBuilder.remove(previousRecord);
+        pronunciationTrieBuilder.remove(previousRecord);
+      }
+      if (entry.senses == null) {
+        continue;
+      }
+      int record = arenaBuilder.addEntry(entry.lemmas, entry.frequency, entry.senses, entry.pronunciations);
+      for (String lemma : entry.lemmas) {
+        lemmaTrieBuilder.add(arenaBuilder.addString(lemma), record);
+      }
+      if (entry.pronunciations != null) {
+        for (String pronunciation : entry.pronunciations) {
+          pronunciationTrieBuilder.add(arenaBuilder.addString(pronunciation), record);
+        }
+      }
+      keyRecords.put(entry.key, record);
+    }
+  }
+
+  private List<JijiDictionaryEntry> toEntries(int[] records) {
+    if (records.length == 0) {
+      return Collections.emptyList();
+    }
+    List<JijiDictionaryEntry> entries = new ArrayList<>(records.length);
+    for (int record : records) {
+      entries.add(new JijiDictionaryEntry(arena, record));
+    }
+    return entries;
   }
 
   /**
    * Search for a lemma in the dictionary.
    */
   public List<JijiDictionaryEntry> search(String w) {
-    if (entriesByLemma.containsKey(w)) {
-      return entriesByLemma.get(w);
-    } else {
-      return java.util.Collections.emptyList();
-    }
+    return toEntries(lemmaTrie.search(w));
   }
 
   /**
    * Search an entry by pronounciation.
    */
   public List<JijiDictionaryEntry> searchByPronunciation(String p) {
-    if (entriesByPronunciation.containsKey(p)) {
-      return entriesByPronunciation.get(p);
-    } else {
-      return java.util.Collections.emptyList();
+    return toEntries(pronunciationTrie.search(p));
+  }
+
+  /**
+   * Search all the lemmas starting at some offset of a text.
+   * For example with text "XXX電車で" and offset 3, return the matches for 電 and 電車.
+   * @return the matches ordered by increasing length.
+   */
+  public List<PrefixMatch> commonPrefixSearch(CharSequence text, int offset) {
+    return prefixSearch(lemmaTrie, text, offset);
+  }
+
+  /**
+   * Search all the pronunciations starting at some offset of a text.
+   * @return the matches ordered by increasing length.
+   */
+  public List<PrefixMatch> commonPrefixSearchByPronunciation(CharSequence text, int offset) {
+    return prefixSearch(pronunciationTrie, text, offset);
+  }
+
+  /**
+   * Length in chars of the longest lemma.
+   */
+  public int getMaxLemmaLength() {
+    return lemmaTrie.getMaxKeyLength();
+  }
+
+  /**
+   * Return all the lemmas of the dictionary, e.g. to build another index of the words.
+   * This reads every entry, so it is slow in paged mode.
+   */
+  public Set<String> getLemmas() {
+    Set<String> lemmas = new HashSet<>(lemmaTrie.getKeyCount() * 2);
+    for (int key = 0; key < lemmaTrie.getKeyCount(); key++) {
+      for (int record : lemmaTrie.getRecords(key)) {
+        lemmas.addAll(arena.getLemmas(record));
+      }
     }
+    return lemmas;
+  }
+
+  /**
+   * Length in chars of the longest pronunciation.
+   */
+  public int getMaxPronunciationLength() {
+    return pronunciationTrie.getMaxKeyLength();
+  }
+
+  private List<PrefixMatch> prefixSearch(JijiDictionaryTrie trie, CharSequence text, int offset) {
+    List<PrefixMatch> matches = new ArrayList<>();
+    trie.commonPrefixSearch(text, offset, (end, key) -> matches.add(new PrefixMatch(end, toEntries(trie.getRecords(key)))));
+    return matches;
+  }
+
+  /**
+   * A dictionary key found in some text by a common prefix search.
+   */
+  public static class PrefixMatch {
+    private final int end;
+    private final List<JijiDictionaryEntry> entries;
+
+    PrefixMatch(int end, List<JijiDictionaryEntry> entries) {
+      this.end = end;
+      this.entries = entries;
+    }
+
+    /**
+     * Offset in the text where the key ends(exclusive).
+     */
+    public int getEnd() {
+      return end;
+    }
+
+    public List<JijiDictionaryEntry> getEntries() {
+      return entries;
+    }
+  }
+
+  /**
+   * Return the cache of decoded entries when the dictionary is opened in paged mode, null otherwise.
+   */
+  public LruCache<?, ?> getEntryCache() {
+    return arena instanceof JijiDictionaryPagedArena ? ((JijiDictionaryPagedArena) arena).getEntryCache() : null;
   }
-}
 
+  // Accessors used to compile the dictionary into a snapshot
+
+  JijiDictionaryArena getArena() {
+    return arena;
+  }
+
+  JijiDictionaryTrie getLemmaTrie() {
+    return lemmaTrie;
+  }
+
+  JijiDictionaryTrie getPronunciationTrie() {
+    return pronunciationTrie;
+  }
+}
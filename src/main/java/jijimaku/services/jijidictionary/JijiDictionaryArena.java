@@ -0,0 +1,247 @@
+package jijimaku.services.jijidictionary;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Compact storage for the entries of a Jiji dictionary.
+ * All strings are stored once as UTF-8 bytes in a text arena(length as a varint followed by the bytes),
+ * and each entry is a record in an int arena:
+ * - a header int packing the frequency and the number of lemmas, senses and pronunciations
+ * - the text arena offsets of the lemmas, then of the senses, then of the pronunciations
+ * The few entries that do not fit in the header(more than 254 lemmas, senses or pronunciations, or a frequency
+ * outside 1-255) have an extended header instead: the header int with an EXTENDED lemmas count, followed by
+ * the frequency, the number of lemmas, senses and pronunciations as full ints.
+ * An entry is therefore just the int offset of its record, see JijiDictionaryEntry for the view exposing it.
+ * The arenas are either on the heap(built from YAML) or memory mapped from a snapshot file.
+ */
+class JijiDictionaryArena {
+  private static final int MAX_LIST_SIZE = 0xFE;
+  private static final int MAX_FREQUENCY = 0xFF;
+  private static final int NO_PRONUNCIATION = 0xFF;
+  private static final int NO_FREQUENCY = 0;
+  // Lemmas count of a record with an extended header
+  private static final int EXTENDED = 0xFF;
+  private static final int EXTENDED_HEADER_SIZE = 5;
+  private static final int EXTENDED_NO_PRONUNCIATION = -1;
+  private static final int EXTENDED_NO_FREQUENCY = Integer.MIN_VALUE;
+
+  private final ByteBuffer text;
+  private final IntBuffer records;
+
+  JijiDictionaryArena(ByteBuffer text, IntBuffer records) {
+    this.text = text;
+    this.records = records;
+  }
+
+  ByteBuffer getText() {
+    return text;
+  }
+
+  IntBuffer getRecords() {
+    return records;
+  }
+
+  private boolean isExtended(int record) {
+    return ((records.get(record) >>> 16) & 0xFF) == EXTENDED;
+  }
+
+  Integer getFrequency(int record) {
+    if (isExtended(record)) {
+      int frequency = records.get(record + 1);
+      return frequency != EXTENDED_NO_FREQUENCY ? frequency : null;
+    }
+    int frequency = records.get(record) >>> 24;
+    return frequency != NO_FREQUENCY ? frequency : null;
+  }
+
+  List<String> getLemmas(int record) {
+    return readStrings(getStringsStart(record), getLemmasCount(record));
+  }
+
+  List<String> getSenses(int record) {
+    return readStrings(getStringsStart(record) + getLemmasCount(record), getSensesCount(record));
+  }
+
+  List<String> getPronunciations(int record) {
+    int count = getPronunciationsCount(record);
+    if (count < 0) {
+      return null;
+    }
+    return readStrings(getStringsStart(record) + getLemmasCount(record) + getSensesCount(record), count);
+  }
+
+  private int getStringsStart(int record) {
+    return record + (isExtended(record) ? EXTENDED_HEADER_SIZE : 1);
+  }
+
+  private int getLemmasCount(int record) {
+    return isExtended(record) ? records.get(record + 2) : (records.get(record) >>> 16) & 0xFF;
+  }
+
+  private int getSensesCount(int record) {
+    return isExtended(record) ? records.get(record + 3) : (records.get(record) >>> 8) & 0xFF;
+  }
+
+  /**
+   * @return the number of pronunciations, -1 if the entry has no pronunciation.
+   */
+  private int getPronunciationsCount(int record) {
+    if (isExtended(record)) {
+      return records.get(record + 4);
+    }
+    int count = records.get(record) & 0xFF;
+    return count != NO_PRONUNCIATION ? count : -1;
+  }
+
+  private List<String> readStrings(int start, int count) {
+    List<String> strings = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      strings.add(getString(records.get(start + i)));
+    }
+    return Collections.unmodifiableList(strings);
+  }
+
+  /**
+   * Decode the string stored at some offset of the text arena.
+   * Overridden by JijiDictionaryPagedArena which reads the text arena from disk.
+   */
+  String getString(int offset) {
+    int length = readLength(offset);
+    byte[] bytes = new byte[length];
+    ByteBuffer src = text.duplicate();
+    src.position(offset + lengthSize(length));
+    src.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private int readLength(int offset) {
+    int length = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = text.get(offset++);
+      length |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return length;
+  }
+
+  private static int lengthSize(int length) {
+    int size = 1;
+    while (length >= 0x80) {
+      length >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Build an arena on the heap, entry by entry.
+   * Identical strings(lemmas shared by several entries, common senses...) are stored only once.
+   */
+  static class Builder {
+    private byte[] text = new byte[1 << 16];
+    private int textSize = 0;
+    private int[] records = new int[1 << 14];
+    private int recordsSize = 0;
+    private Map<String, Integer> stringOffsets = new HashMap<>();
+
+    /**
+     * Add an entry to the arena.
+     * @return the entry record offset
+     */
+    int addEntry(List<String> lemmas, Integer frequency, List<String> senses, List<String> pronunciations) {
+      int pronunciationsCount = pronunciations != null ? pronunciations.size() : 0;
+      boolean extended = lemmas.size() > MAX_LIST_SIZE || senses.size() > MAX_LIST_SIZE
+          || pronunciationsCount > MAX_LIST_SIZE
+          || (frequency != null && (frequency <= NO_FREQUENCY || frequency > MAX_FREQUENCY));
+      final int record = recordsSize;
+      ensureRecordsCapacity(EXTENDED_HEADER_SIZE + lemmas.size() + senses.size() + pronunciationsCount);
+      if (extended) {
+        records[recordsSize++] = EXTENDED << 16;
+        records[recordsSize++] = frequency != null ? frequency : EXTENDED_NO_FREQUENCY;
+        records[recordsSize++] = lemmas.size();
+        records[recordsSize++] = senses.size();
+        records[recordsSize++] = pronunciations != null ? pronunciationsCount : EXTENDED_NO_PRONUNCIATION;
+      } else {
+        records[recordsSize++] = (frequency != null ? frequency : NO_FREQUENCY) << 24
+            | lemmas.size() << 16
+            | senses.size() << 8
+            | (pronunciations != null ? pronunciationsCount : NO_PRONUNCIATION);
+      }
+      for (String lemma : lemmas) {
+        records[recordsSize++] = addString(lemma);
+      }
+      for (String sense : senses) {
+        records[recordsSize++] = addString(sense);
+      }
+      if (pronunciations != null) {
+        for (String pronunciation : pronunciations) {
+          records[recordsSize++] = addString(pronunciation);
+        }
+      }
+      return record;
+    }
+
+    /**
+     * Store a string in the text arena if not already present.
+     * @return the string offset in the text arena
+     */
+    int addString(String str) {
+      Integer existingOffset = stringOffsets.get(str);
+      if (existingOffset != null) {
+        return existingOffset;
+      }
+
+      byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+      final int offset = textSize;
+      ensureTextCapacity(5 + bytes.length);
+      int length = bytes.length;
+      while (length >= 0x80) {
+        text[textSize++] = (byte) (length | 0x80);
+        length >>>= 7;
+      }
+      text[textSize++] = (byte) length;
+      System.arraycopy(bytes, 0, text, textSize, bytes.length);
+      textSize += bytes.length;
+      stringOffsets.put(str, offset);
+      return offset;
+    }
+
+    private void ensureTextCapacity(int extra) {
+      if (textSize + extra > text.length) {
+        text = Arrays.copyOf(text, Math.max(text.length * 2, textSize + extra));
+      }
+    }
+
+    private void ensureRecordsCapacity(int extra) {
+      if (recordsSize + extra > records.length) {
+        records = Arrays.copyOf(records, Math.max(records.length * 2, recordsSize + extra));
+      }
+    }
+
+    /**
+     * Return the built arena, trimmed to its actual size.
+     * The builder should not be used afterwards.
+     */
+    JijiDictionaryArena build() {
+      stringOffsets = null;
+      JijiDictionaryArena arena = new JijiDictionaryArena(
+          ByteBuffer.wrap(Arrays.copyOf(text, textSize)),
+          IntBuffer.wrap(Arrays.copyOf(records, recordsSize))
+      );
+      text = null;
+      records = null;
+      return arena;
+    }
+  }
+}
@@ -5,39 +5,47 @@ import java.util.Objects;
 
 /**
  * Contains one entry of a Jiji dictionary.
+ * This is a lightweight view on the entry record stored in the dictionary arena,
+ * lists are decoded from the arena when requested.
  */
 public class JijiDictionaryEntry {
-  private final List<String> lemmas;
-  private final List<String> senses;
-  private final List<String> pronounciation;
-  private final Integer frequency;
+  private final JijiDictionaryArena arena;
+  private final int record;
 
+  /**
+   * Create an entry outside of any dictionary, stored in its own small arena.
+   */
   public JijiDictionaryEntry(List<String> lemmas, Integer frequency, List<String> senses, List<String> pronounciation) {
-    Objects.requireNonNull(lemmas, "lemmas should not be null");
-    Objects.requireNonNull(senses, "senses should not be null");
-    this.lemmas = lemmas;
-    this.frequency = frequency;
-    this.senses = senses;
-    this.pronounciation = pronounciation;
+    Objects.requireNonNull(lemmas);
+    Objects.requireNonNull(senses);
+    JijiDictionaryArena.Builder builder = new JijiDictionaryArena.Builder();
+    this.record = builder.addEntry(lemmas, frequency, senses, pronounciation);
+    this.arena = builder.build();
+  }
+
+  JijiDictionaryEntry(JijiDictionaryArena arena, int record) {
+    this.arena = arena;
+    this.record = record;
   }
 
   public List<String> getLemmas() {
-    return lemmas;
+    return arena.getLemmas(record);
   }
 
   public List<String> getSenses() {
-    return senses;
+    return arena.getSenses(record);
   }
 
   public List<String> getPronounciation() {
-    return pronounciation;
+    return arena.getPronunciations(record);
   }
 
   public Integer getFrequency() {
-    return frequency;
+    return arena.getFrequency(record);
   }
 
   // Overrides equals ans hashCode for proper use in collections
+  // Two entries are equal when their values are, whatever arena record they are read from
   @Override
   public boolean equals(Object otherObj) {
     if (this == otherObj) {
@@ -48,24 +56,18 @@ public class JijiDictionaryEntry {
     }
 
     JijiDictionaryEntry otherEntry = (JijiDictionaryEntry) otherObj;
-    if (!lemmas.equals(otherEntry.lemmas)) {
-      return false;
-    }
-    if (!senses.equals(otherEntry.senses)) {
-      return false;
-    }
-    if (pronounciation != null ? !pronounciation.equals(otherEntry.pronounciation) : otherEntry.pronounciation != null) {
-      return false;
+    if (arena == otherEntry.arena && record == otherEntry.record) {
+      return true;
     }
-    return frequency != null ? frequency.equals(otherEntry.frequency) : otherEntry.frequency == null;
+    return Objects.equals(getFrequency(), otherEntry.getFrequency())
+        && getLemmas().equals(otherEntry.getLemmas())
+        && getSenses().equals(otherEntry.getSenses())
+        && Objects.equals(getPronounciation(), otherEntry.getPronounciation());
   }
 
+  // Hash only the lemmas and frequency, the senses are much longer to decode
   @Override
   public int hashCode() {
-    int result = lemmas.hashCode();
-    result = 31 * result + senses.hashCode();
-    result = 31 * result + (pronounciation != null ? pronounciation.hashCode() : 0);
-    result = 31 * result + (frequency != null ? frequency.hashCode() : 0);
-    return result;
+    return Objects.hash(getLemmas(), getFrequency());
   }
-}
\ No newline at end of file
+}
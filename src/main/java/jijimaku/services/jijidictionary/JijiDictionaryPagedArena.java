@@ -0,0 +1,139 @@
+package jijimaku.services.jijidictionary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import jijimaku.errors.UnexpectedError;
+import jijimaku.utils.FileManager;
+import jijimaku.utils.LruCache;
+
+
+/**
+ * Dictionary arena whose text(lemmas, senses & pronunciations) stays on disk.
+ * Only the records arena is kept in memory, strings are read from the snapshot file when an entry is displayed
+ * and the decoded entries are kept in a bounded LRU cache.
+ * Most entries are never displayed when annotating subtitles, so this needs only a fraction of the memory
+ * of a fully loaded or mapped dictionary.
+ */
+class JijiDictionaryPagedArena extends JijiDictionaryArena {
+  private static final Logger LOGGER;
+
+  static {
+    System.setProperty("logDir", FileManager.getLogsDirectory());
+    LOGGER = LogManager.getLogger();
+  }
+
+  // Most strings are shorter, longer ones are read in a second time
+  private static final int READ_AHEAD_SIZE = 256;
+
+  private final FileChannel channel;
+  private final long textPosition;
+  private final LruCache<Integer, DecodedEntry> entryCache;
+
+  /**
+   * Lists of an entry, as decoded from disk.
+   */
+  private static class DecodedEntry {
+    private final List<String> lemmas;
+    private final List<String> senses;
+    private final List<String> pronunciations;
+
+    DecodedEntry(List<String> lemmas, List<String> senses, List<String> pronunciations) {
+      this.lemmas = lemmas;
+      this.senses = senses;
+      this.pronunciations = pronunciations;
+    }
+  }
+
+  /**
+   * Constructor.
+   * @param channel open channel on the snapshot file, it must stay open as long as the arena is used
+   * @param textPosition position of the text arena in the file
+   * @param records records arena
+   * @param entryCacheSize maximum number of decoded entries kept in memory
+   */
+  JijiDictionaryPagedArena(FileChannel channel, long textPosition, IntBuffer records, int entryCacheSize) {
+    super(null, records);
+    this.channel = channel;
+    this.textPosition = textPosition;
+    this.entryCache = new LruCache<>(entryCacheSize);
+  }
+
+  LruCache<?, ?> getEntryCache() {
+    return entryCache;
+  }
+
+  private DecodedEntry getDecodedEntry(int record) {
+    DecodedEntry entry = entryCache.get(record);
+    if (entry == null) {
+      entry = new DecodedEntry(super.getLemmas(record), super.getSenses(record), super.getPronunciations(record));
+      entryCache.put(record, entry);
+    }
+    return entry;
+  }
+
+  @Override
+  List<String> getLemmas(int record) {
+    return getDecodedEntry(record).lemmas;
+  }
+
+  @Override
+  List<String> getSenses(int record) {
+    return getDecodedEntry(record).senses;
+  }
+
+  @Override
+  List<String> getPronunciations(int record) {
+    return getDecodedEntry(record).pronunciations;
+  }
+
+  @Override
+  String getString(int offset) {
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(READ_AHEAD_SIZE);
+      readFully(buffer, textPosition + offset);
+
+      // Decode the varint length
+      int length = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buffer.get();
+        length |= (b & 0x7F) << shift;
+        shift += 7;
+      } while (b < 0);
+
+      if (length > buffer.remaining()) {
+        int start = buffer.position();
+        buffer = ByteBuffer.allocate(length);
+        readFully(buffer, textPosition + offset + start);
+      }
+      return new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    } catch (IOException exc) {
+      LOGGER.error("Problem reading the dictionary snapshot");
+      LOGGER.debug("Got exception", exc);
+      throw new UnexpectedError();
+    }
+  }
+
+  /**
+   * Fill a buffer from some position of the channel, or until the end of the file.
+   * The buffer is flipped, ready to be read.
+   */
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        break;
+      }
+    }
+    buffer.flip();
+  }
+}
@@ -0,0 +1,221 @@
+package jijimaku.services.jijidictionary;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Binary snapshot of a Jiji dictionary.
+ * The snapshot is compiled once from the YAML dictionary and written next to it,
+ * then memory mapped on the following launches so that no YAML parsing is needed
+ * and the dictionary data stays out of the Java heap.
+ *
+ * <p>File layout (all integers big-endian):
+ * - header: magic, format version, source file length & last modified time, then offset & length of each section
+ * - sections: the text and records arenas(see JijiDictionaryArena), the lemma and pronunciation tries(see JijiDictionaryTrie)
+ * Sections are dumped as is and mapped back without any decoding.
+ *
+ * <p>A snapshot can also be opened in paged mode: the records arena and the tries are read in memory
+ * but the text arena stays on disk, see JijiDictionaryPagedArena.
+ */
+public class JijiDictionarySnapshot {
+  private static final int MAGIC = 0x4A494A49;  // "JIJI"
+  private static final int FORMAT_VERSION = 4;
+  private static final int SECTIONS_COUNT = 4;
+  private static final int HEADER_SIZE = 24 + 8 * SECTIONS_COUNT;
+  private static final String SNAPSHOT_EXTENSION = ".snapshot";
+
+  private final JijiDictionaryArena arena;
+  private final JijiDictionaryTrie lemmaTrie;
+  private final JijiDictionaryTrie pronunciationTrie;
+
+  private JijiDictionarySnapshot(ByteBuffer buffer) throws IOException {
+    checkHeader(buffer, buffer.capacity());
+    arena = new JijiDictionaryArena(getSection(buffer, 0), getSection(buffer, 1).asIntBuffer());
+    lemmaTrie = new JijiDictionaryTrie(getSection(buffer, 2).asIntBuffer());
+    pronunciationTrie = new JijiDictionaryTrie(getSection(buffer, 3).asIntBuffer());
+  }
+
+  private JijiDictionarySnapshot(FileChannel channel, int entryCacheSize) throws IOException {
+    ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+    checkHeader(header, channel.size());
+    int textOffset = getSectionOffset(header, 0, channel.size());
+    arena = new JijiDictionaryPagedArena(channel, textOffset, readSection(channel, header, 1).asIntBuffer(), entryCacheSize);
+    lemmaTrie = new JijiDictionaryTrie(readSection(channel, header, 2).asIntBuffer());
+    pronunciationTrie = new JijiDictionaryTrie(readSection(channel, header, 3).asIntBuffer());
+  }
+
+  private static void checkHeader(ByteBuffer header, long fileSize) throws IOException {
+    if (fileSize < HEADER_SIZE || header.getInt(0) != MAGIC) {
+      throw new IOException("Not a jiji dictionary snapshot");
+    }
+    if (header.getInt(4) != FORMAT_VERSION) {
+      throw new IOException("Unsupported jiji dictionary snapshot version " + header.getInt(4));
+    }
+  }
+
+  private static int getSectionOffset(ByteBuffer header, int section, long fileSize) throws IOException {
+    int offset = header.getInt(24 + 8 * section);
+    int length = header.getInt(28 + 8 * section);
+    if (offset < HEADER_SIZE || length < 0 || (long) offset + length > fileSize) {
+      throw new IOException("Corrupted jiji dictionary snapshot");
+    }
+    return offset;
+  }
+
+  private static ByteBuffer getSection(ByteBuffer buffer, int section) throws IOException {
+    int offset = getSectionOffset(buffer, section, buffer.capacity());
+    int length = buffer.getInt(28 + 8 * section);
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(offset);
+    slice.limit(offset + length);
+    return slice.slice();
+  }
+
+  private static ByteBuffer readSection(FileChannel channel, ByteBuffer header, int section) throws IOException {
+    int offset = getSectionOffset(header, section, channel.size());
+    return readFully(channel, offset, header.getInt(28 + 8 * section));
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Truncated jiji dictionary snapshot");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Return the snapshot file associated to a YAML dictionary file.
+   */
+  public static File getSnapshotFile(File jijiDictFile) {
+    return new File(FilenameUtils.removeExtension(jijiDictFile.getPath()) + SNAPSHOT_EXTENSION);
+  }
+
+  /**
+   * Check if a snapshot exists with the current format version and was compiled from the current dictionary file.
+   */
+  public static boolean isUpToDate(File snapshotFile, File jijiDictFile) {
+    if (!snapshotFile.isFile() || snapshotFile.length() < HEADER_SIZE) {
+      return false;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r")) {
+      return raf.readInt() == MAGIC
+          && raf.readInt() == FORMAT_VERSION
+          && raf.readLong() == jijiDictFile.length()
+          && raf.readLong() == jijiDictFile.lastModified();
+    } catch (IOException exc) {
+      return false;
+    }
+  }
+
+  /**
+   * Memory map a snapshot file.
+   */
+  public static JijiDictionarySnapshot map(File snapshotFile) throws IOException {
+    try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new JijiDictionarySnapshot(mapped);
+    }
+  }
+
+  /**
+   * Open a snapshot file in paged mode.
+   * The file stays open as long as the dictionary is used.
+   * @param entryCacheSize maximum number of entries kept decoded in memory
+   */
+  public static JijiDictionarySnapshot open(File snapshotFile, int entryCacheSize) throws IOException {
+    FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+    try {
+      return new JijiDictionarySnapshot(channel, entryCacheSize);
+    } catch (IOException | RuntimeException exc) {
+      channel.close();
+      throw exc;
+    }
+  }
+
+  /**
+   * Compile a dictionary loaded from YAML into a snapshot file.
+   * The snapshot is first written to a temporary file then moved in place, so that an interrupted
+   * compilation never leaves a truncated snapshot behind.
+   */
+  public static void write(JijiDictionary dict, File jijiDictFile, File snapshotFile) throws IOException {
+    File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+    int[] sectionOffsets = new int[SECTIONS_COUNT + 1];
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+      out.write(new byte[HEADER_SIZE]);
+      sectionOffsets[0] = out.size();
+      writeBytes(out, dict.getArena().getText());
+      // Keep the int sections aligned
+      while (out.size() % 4 != 0) {
+        out.writeByte(0);
+      }
+      sectionOffsets[1] = out.size();
+      writeInts(out, dict.getArena().getRecords());
+      sectionOffsets[2] = out.size();
+      writeInts(out, dict.getLemmaTrie().getData());
+      sectionOffsets[3] = out.size();
+      writeInts(out, dict.getPronunciationTrie().getData());
+      sectionOffsets[4] = out.size();
+    }
+
+    try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+      raf.writeInt(MAGIC);
+      raf.writeInt(FORMAT_VERSION);
+      raf.writeLong(jijiDictFile.length());
+      raf.writeLong(jijiDictFile.lastModified());
+      for (int section = 0; section < SECTIONS_COUNT; section++) {
+        raf.writeInt(sectionOffsets[section]);
+        raf.writeInt(section == 0
+            ? dict.getArena().getText().limit()
+            : sectionOffsets[section + 1] - sectionOffsets[section]);
+      }
+    }
+    Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void writeBytes(DataOutputStream out, ByteBuffer bytes) throws IOException {
+    ByteBuffer src = bytes.duplicate();
+    src.rewind();
+    byte[] chunk = new byte[1 << 16];
+    while (src.hasRemaining()) {
+      int len = Math.min(chunk.length, src.remaining());
+      src.get(chunk, 0, len);
+      out.write(chunk, 0, len);
+    }
+  }
+
+  private static void writeInts(DataOutputStream out, IntBuffer ints) throws IOException {
+    for (int i = 0; i < ints.limit(); i++) {
+      out.writeInt(ints.get(i));
+    }
+  }
+
+  JijiDictionaryArena getArena() {
+    return arena;
+  }
+
+  JijiDictionaryTrie getLemmaTrie() {
+    return lemmaTrie;
+  }
+
+  JijiDictionaryTrie getPronunciationTrie() {
+    return pronunciationTrie;
+  }
+}
@@ -0,0 +1,381 @@
+package jijimaku.services.jijidictionary;
+
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+
+/**
+ * Index of dictionary entries by key(lemma or pronunciation), implemented as a double-array trie
+ * over the keys UTF-8 bytes.
+ * Beside exact search, the trie can return in a single walk all the keys that are a prefix of some text,
+ * which is what we need to find the dictionary words starting at some position of a caption.
+ *
+ * <p>The trie is a single int buffer:
+ * - the number of cells, the number of keys and the length(in chars) of the longest key
+ * - the cells as (base, check) pairs: the child of cell s for byte b is t = base[s] + b + 1 if check[t] == s,
+ *   and a key ends at s if t = base[s] has check[t] == s, in which case base[t] is -(key number) - 1
+ * - for each key the start of its entries in the postings(plus the end of the last one)
+ * - the postings: entries record offsets
+ * Like the arena, the buffer is either on the heap or memory mapped from a snapshot file.
+ */
+class JijiDictionaryTrie {
+  private static final int[] NO_RECORDS = new int[0];
+  private static final int HEADER_SIZE = 3;
+  private static final int FREE = -1;
+  private static final int ROOT = 0;
+
+  private final IntBuffer data;
+  private final int cellCount;
+  private final int keyCount;
+  private final int maxKeyLength;
+  private final int postingStartsOffset;
+  private final int postingsOffset;
+
+  JijiDictionaryTrie(IntBuffer data) {
+    this.data = data;
+    cellCount = data.get(0);
+    keyCount = data.get(1);
+    maxKeyLength = data.get(2);
+    postingStartsOffset = HEADER_SIZE + 2 * cellCount;
+    postingsOffset = postingStartsOffset + keyCount + 1;
+  }
+
+  IntBuffer getData() {
+    return data;
+  }
+
+  int getKeyCount() {
+    return keyCount;
+  }
+
+  /**
+   * Length in chars of the longest key.
+   */
+  int getMaxKeyLength() {
+    return maxKeyLength;
+  }
+
+  private int base(int cell) {
+    return data.get(HEADER_SIZE + 2 * cell);
+  }
+
+  private int check(int cell) {
+    return data.get(HEADER_SIZE + 2 * cell + 1);
+  }
+
+  /**
+   * Follow the transition for one byte.
+   * @return the child cell, or -1 if there is none
+   */
+  private int next(int cell, int b) {
+    int child = base(cell) + (b & 0xFF) + 1;
+    return child < cellCount && check(child) == cell ? child : -1;
+  }
+
+  /**
+   * Return the number of the key ending at some cell, or -1 if no key ends there.
+   */
+  private int keyAt(int cell) {
+    int terminal = base(cell);
+    if (terminal >= 0 && terminal < cellCount && check(terminal) == cell) {
+      return -base(terminal) - 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Return the records offsets of the entries of a key.
+   */
+  int[] getRecords(int key) {
+    int start = data.get(postingStartsOffset + key);
+    int end = data.get(postingStartsOffset + key + 1);
+    int[] records = new int[end - start];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = data.get(postingsOffset + start + i);
+    }
+    return records;
+  }
+
+  /**
+   * Exact search of a key.
+   * @return the records offsets of the entries for this key(empty if the key is absent).
+   */
+  int[] search(String key) {
+    int cell = ROOT;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      cell = next(cell, b);
+      if (cell < 0) {
+        return NO_RECORDS;
+      }
+    }
+    int keyNumber = keyAt(cell);
+    return keyNumber >= 0 ? getRecords(keyNumber) : NO_RECORDS;
+  }
+
+  /**
+   * Receive the keys found by commonPrefixSearch.
+   */
+  interface PrefixConsumer {
+    void accept(int end, int key);
+  }
+
+  /**
+   * Find all the keys that start at some offset of a text, walking the trie only once.
+   * Chars are encoded to UTF-8 on the fly like String.getBytes does(unpaired surrogates become '?').
+   * @param consumer receives, for each key found, the text offset where the key ends(exclusive) and the key number
+   */
+  void commonPrefixSearch(CharSequence text, int offset, PrefixConsumer consumer) {
+    int cell = ROOT;
+    byte[] utf8 = new byte[4];
+    int i = offset;
+    while (i < text.length() && cell >= 0) {
+      int codePoint = text.charAt(i++);
+      if (Character.isHighSurrogate((char) codePoint) && i < text.length() && Character.isLowSurrogate(text.charAt(i))) {
+        codePoint = Character.toCodePoint((char) codePoint, text.charAt(i++));
+      } else if (Character.isSurrogate((char) codePoint)) {
+        codePoint = '?';
+      }
+      int len = encodeUtf8(codePoint, utf8);
+      for (int j = 0; j < len && cell >= 0; j++) {
+        cell = next(cell, utf8[j]);
+      }
+      if (cell >= 0) {
+        int keyNumber = keyAt(cell);
+        if (keyNumber >= 0) {
+          consumer.accept(i, keyNumber);
+        }
+      }
+    }
+  }
+
+  private static int encodeUtf8(int codePoint, byte[] out) {
+    if (codePoint < 0x80) {
+      out[0] = (byte) codePoint;
+      return 1;
+    } else if (codePoint < 0x800) {
+      out[0] = (byte) (0xC0 | (codePoint >> 6));
+      out[1] = (byte) (0x80 | (codePoint & 0x3F));
+      return 2;
+    } else if (codePoint < 0x10000) {
+      out[0] = (byte) (0xE0 | (codePoint >> 12));
+      out[1] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+      out[2] = (byte) (0x80 | (codePoint & 0x3F));
+      return 3;
+    }
+    out[0] = (byte) (0xF0 | (codePoint >> 18));
+    out[1] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+    out[2] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+    out[3] = (byte) (0x80 | (codePoint & 0x3F));
+    return 4;
+  }
+
+  /**
+   * Build a trie from (key, entry) pairs.
+   * Entries of a key are kept in the order they were added.
+   */
+  static class Builder {
+    private int[] keys = new int[1 << 14];
+    private int[] records = new int[1 << 14];
+    private int size = 0;
+    private final Set<Integer> removedRecords = new HashSet<>();
+
+    // Cells while building
+    private int[] base;
+    private int[] check;
+    private int cellCount;
+    private int nextCheckPos;
+
+    /**
+     * Add an entry to the trie.
+     * @param key text arena offset of the key
+     * @param record entry record offset
+     */
+    void add(int key, int record) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        records = Arrays.copyOf(records, size * 2);
+      }
+      keys[size] = key;
+      records[size] = record;
+      size++;
+    }
+
+    /**
+     * Remove all the entries of a record added so far, e.g. when a later entry replaces it.
+     */
+    void remove(int record) {
+      removedRecords.add(record);
+    }
+
+    JijiDictionaryTrie build(JijiDictionaryArena arena) {
+      if (!removedRecords.isEmpty()) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+          if (!removedRecords.contains(records[i])) {
+            keys[kept] = keys[i];
+            records[kept] = records[i];
+            kept++;
+          }
+        }
+        size = kept;
+      }
+
+      // Distinct keys, sorted by UTF-8 bytes
+      int[] distinctKeys = Arrays.stream(keys, 0, size).sorted().distinct().toArray();
+      byte[][] distinctKeyBytes = new byte[distinctKeys.length][];
+      int maxKeyLength = 0;
+      for (int i = 0; i < distinctKeys.length; i++) {
+        String key = arena.getString(distinctKeys[i]);
+        distinctKeyBytes[i] = key.getBytes(StandardCharsets.UTF_8);
+        maxKeyLength = Math.max(maxKeyLength, key.length());
+      }
+      Integer[] order = new Integer[distinctKeys.length];
+      Arrays.setAll(order, i -> i);
+      Arrays.sort(order, (i1, i2) -> compareBytes(distinctKeyBytes[i1], distinctKeyBytes[i2]));
+      int[] keyNumbers = new int[distinctKeys.length];
+      byte[][] keyBytes = new byte[distinctKeys.length][];
+      for (int keyNumber = 0; keyNumber < order.length; keyNumber++) {
+        keyNumbers[order[keyNumber]] = keyNumber;
+        keyBytes[keyNumber] = distinctKeyBytes[order[keyNumber]];
+      }
+
+      // Place the cells
+      base = new int[Math.max(1024, keyBytes.length * 4)];
+      check = new int[base.length];
+      Arrays.fill(check, FREE);
+      check[ROOT] = ROOT;
+      cellCount = 1;
+      nextCheckPos = 1;
+      if (keyBytes.length > 0) {
+        insertChildren(ROOT, keyBytes, 0, keyBytes.length, 0);
+      }
+
+      // Postings: count entries per key then place them(stable counting sort)
+      int keyCount = keyBytes.length;
+      int postingStartsOffset = HEADER_SIZE + 2 * cellCount;
+      int postingsOffset = postingStartsOffset + keyCount + 1;
+      int[] data = new int[postingsOffset + size];
+      data[0] = cellCount;
+      data[1] = keyCount;
+      data[2] = maxKeyLength;
+      for (int cell = 0; cell < cellCount; cell++) {
+        data[HEADER_SIZE + 2 * cell] = base[cell];
+        data[HEADER_SIZE + 2 * cell + 1] = check[cell];
+      }
+      int[] pairKeyNumbers = new int[size];
+      for (int i = 0; i < size; i++) {
+        pairKeyNumbers[i] = keyNumbers[Arrays.binarySearch(distinctKeys, keys[i])];
+        data[postingStartsOffset + pairKeyNumbers[i] + 1]++;
+      }
+      for (int keyNumber = 0; keyNumber < keyCount; keyNumber++) {
+        data[postingStartsOffset + keyNumber + 1] += data[postingStartsOffset + keyNumber];
+      }
+      int[] nextPosting = Arrays.copyOfRange(data, postingStartsOffset, postingStartsOffset + keyCount);
+      for (int i = 0; i < size; i++) {
+        data[postingsOffset + nextPosting[pairKeyNumbers[i]]++] = records[i];
+      }
+
+      keys = null;
+      records = null;
+      base = null;
+      check = null;
+      return new JijiDictionaryTrie(IntBuffer.wrap(data));
+    }
+
+    private static int compareBytes(byte[] b1, byte[] b2) {
+      int len = Math.min(b1.length, b2.length);
+      for (int i = 0; i < len; i++) {
+        int cmp = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return b1.length - b2.length;
+    }
+
+    /**
+     * Place the children of a cell.
+     * The keys in [start, end) are sorted and share their first depth bytes, which lead to the cell.
+     * Labels are byte + 1, label 0 marks the end of a key.
+     */
+    private void insertChildren(int parent, byte[][] keyBytes, int start, int end, int depth) {
+      // Collect the distinct labels and where each one starts in the keys range
+      int[] labels = new int[257];
+      int[] labelStarts = new int[258];
+      int labelCount = 0;
+      for (int i = start; i < end; i++) {
+        int label = depth < keyBytes[i].length ? (keyBytes[i][depth] & 0xFF) + 1 : 0;
+        if (labelCount == 0 || labels[labelCount - 1] != label) {
+          labels[labelCount] = label;
+          labelStarts[labelCount] = i;
+          labelCount++;
+        }
+      }
+      labelStarts[labelCount] = end;
+
+      int begin = findBase(labels, labelCount);
+      base[parent] = begin;
+      for (int l = 0; l < labelCount; l++) {
+        check[begin + labels[l]] = parent;
+      }
+      cellCount = Math.max(cellCount, begin + labels[labelCount - 1] + 1);
+
+      for (int l = 0; l < labelCount; l++) {
+        int child = begin + labels[l];
+        if (labels[l] == 0) {
+          // Only one key can end here since keys are distinct
+          base[child] = -labelStarts[l] - 1;
+        } else {
+          insertChildren(child, keyBytes, labelStarts[l], labelStarts[l + 1], depth + 1);
+        }
+      }
+    }
+
+    /**
+     * Find a base such that all the cells base + label are free.
+     */
+    private int findBase(int[] labels, int labelCount) {
+      int pos = Math.max(labels[0] + 1, nextCheckPos) - 1;
+      int nonFree = 0;
+      boolean first = true;
+      while (true) {
+        pos++;
+        ensureCapacity(pos + 1);
+        if (check[pos] != FREE) {
+          nonFree++;
+          continue;
+        } else if (first) {
+          nextCheckPos = pos;
+          first = false;
+        }
+
+        int begin = pos - labels[0];
+        ensureCapacity(begin + labels[labelCount - 1] + 1);
+        boolean fits = true;
+        for (int l = 1; l < labelCount && fits; l++) {
+          fits = check[begin + labels[l]] == FREE;
+        }
+        if (fits) {
+          // Skip quickly over the densely filled beginning of the array
+          if ((double) nonFree / (pos - nextCheckPos + 1) >= 0.95) {
+            nextCheckPos = pos;
+          }
+          return begin;
+        }
+      }
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > base.length) {
+        int newLength = Math.max(base.length * 2, capacity);
+        base = Arrays.copyOf(base, newLength);
+        int oldLength = check.length;
+        check = Arrays.copyOf(check, newLength);
+        Arrays.fill(check, oldLength, newLength, FREE);
+      }
+    }
+  }
+}
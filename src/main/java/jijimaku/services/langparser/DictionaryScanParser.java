@@ -0,0 +1,60 @@
+package jijimaku.services.langparser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.ahocorasick.trie.Token;
+import org.ahocorasick.trie.Trie;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import jijimaku.services.jijidictionary.JijiDictionary;
+import jijimaku.utils.FileManager;
+
+
+//-----------------------------------------------------------------------
+// "Lite" parser: cut a sentence into the dictionary words it contains
+//-----------------------------------------------------------------------
+// An Aho-Corasick automaton is built over all the dictionary lemmas, each text is then scanned once
+// and cut into the longest non-overlapping lemmas found(the text between them is returned as X tokens).
+// There is no grammatical analysis: words are found as they are written in the dictionary,
+// so conjugated verbs or adjectives are not recognized and all the words are tagged as nouns.
+// It is much faster than kuromoji when the grammatical analysis is not needed.
+// Thread-safe: the automaton is only read once built.
+
+public class DictionaryScanParser implements LangParser {
+  private static final Logger LOGGER;
+
+  static {
+    System.setProperty("logDir", FileManager.getLogsDirectory());
+    LOGGER = LogManager.getLogger();
+  }
+
+  private final Trie lemmasTrie;
+
+  public DictionaryScanParser(JijiDictionary dict) {
+    Set<String> lemmas = dict.getLemmas();
+    Trie.TrieBuilder builder = Trie.builder().ignoreOverlaps();
+    for (String lemma : lemmas) {
+      builder.addKeyword(lemma);
+    }
+    lemmasTrie = builder.build();
+    LOGGER.debug("Built the lemmas automaton from {} lemmas", lemmas.size());
+  }
+
+  @Override
+  public List<TextToken> syntaxicParse(String text) {
+    Collection<Token> fragments = lemmasTrie.tokenize(text);
+    List<TextToken> tokens = new ArrayList<>(fragments.size());
+    for (Token fragment : fragments) {
+      if (fragment.getFragment().isEmpty()) {
+        continue;
+      }
+      PosTag posTag = fragment.isMatch() ? PosTag.NOUN : PosTag.X;
+      tokens.add(new TextToken(posTag, fragment.getFragment(), null));
+    }
+    return tokens;
+  }
+}
@@ -0,0 +1,368 @@
+package jijimaku.services.langparser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import jijimaku.errors.UnexpectedError;
+import jijimaku.services.langparser.LangParser.PosTag;
+import jijimaku.services.langparser.LangParser.TextToken;
+import jijimaku.utils.FileManager;
+import jijimaku.utils.LruCache;
+
+
+/**
+ * Persistent cache of parsed texts, so that annotating the same subtitles again does not run the parser.
+ * The parse of a text only depends on the text and the parser configuration, the cache file is dropped
+ * when the configuration changes.
+ *
+ * <p>File layout (all integers big-endian):
+ * - header: magic, format version, hash of the parser configuration
+ * - records appended one after the other: record length, MD5 of the UTF-8 text, tokens count,
+ *   then for each token its POS tag, text form and canonical form(or a flag if it is the same as the text form)
+ * A record truncated by an interrupted run is discarded when the file is opened.
+ *
+ * <p>Only the offset of each record is kept in memory, records are read from the file when their text is
+ * parsed again and the last ones read are kept decoded in a LRU cache. When the file holds too many records
+ * it is rewritten with the most recently added ones.
+ */
+class JapaneseParseCache {
+  private static final Logger LOGGER;
+
+  static {
+    System.setProperty("logDir", FileManager.getLogsDirectory());
+    LOGGER = LogManager.getLogger();
+  }
+
+  private static final int MAGIC = 0x4A505253;  // "JPRS"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int KEY_SIZE = 16;
+  private static final PosTag[] POS_TAGS = PosTag.values();
+  // Number of parsed texts kept decoded in memory
+  private static final int DECODED_TEXTS = 10000;
+  // The file is rewritten with the last COMPACTED_RECORDS records when it has more than MAX_RECORDS records
+  private static final int MAX_RECORDS = 100000;
+  private static final int COMPACTED_RECORDS = MAX_RECORDS / 2;
+
+  // File offset of the record of each parsed text
+  private final Map<Key, Long> offsets = new ConcurrentHashMap<>();
+  private final LruCache<Key, List<TextToken>> decodedTexts = new LruCache<>(DECODED_TEXTS);
+  private final FileChannel channel;
+
+  /**
+   * MD5 hash of a text.
+   */
+  private static class Key {
+    private final long high;
+    private final long low;
+
+    Key(long high, long low) {
+      this.high = high;
+      this.low = low;
+    }
+
+    @Override
+    public boolean equals(Object otherObj) {
+      if (this == otherObj) {
+        return true;
+      }
+      if (otherObj == null || getClass() != otherObj.getClass()) {
+        return false;
+      }
+      Key otherKey = (Key) otherObj;
+      return high == otherKey.high && low == otherKey.low;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (low ^ (low >>> 32));
+    }
+  }
+
+  private static byte[] md5(String text) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException exc) {
+      LOGGER.error("MD5 is not available");
+      throw new UnexpectedError();
+    }
+  }
+
+  private static Key getKey(String text) {
+    ByteBuffer hash = ByteBuffer.wrap(md5(text));
+    return new Key(hash.getLong(), hash.getLong());
+  }
+
+  /**
+   * Open a cache file, or create it if it is missing or was written with another parser configuration.
+   * @param configuration description of everything that changes the parse result(parser version, user dictionary...)
+   */
+  JapaneseParseCache(File cacheFile, String configuration) throws IOException {
+    long configurationHash = ByteBuffer.wrap(md5(configuration)).getLong();
+    List<Long> recordOffsets = new ArrayList<>();
+    long validLength = cacheFile.isFile() ? load(cacheFile, configurationHash, recordOffsets) : 0;
+    if (validLength == 0) {
+      try (DataOutputStream header = new DataOutputStream(new FileOutputStream(cacheFile))) {
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.writeLong(configurationHash);
+      }
+    } else if (recordOffsets.size() > MAX_RECORDS) {
+      compact(cacheFile, recordOffsets.subList(recordOffsets.size() - COMPACTED_RECORDS, recordOffsets.size()));
+    } else if (validLength < cacheFile.length()) {
+      try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+        raf.setLength(validLength);
+      }
+    }
+    channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Read the record offsets of a cache file.
+   * @param recordOffsets filled with the offsets of the records, in file order
+   * @return the length of the valid part of the file, 0 if the file cannot be used.
+   */
+  private long load(File cacheFile, long configurationHash, List<Long> recordOffsets) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+      if (cacheFile.length() < HEADER_SIZE
+          || in.readInt() != MAGIC
+          || in.readInt() != FORMAT_VERSION
+          || in.readLong() != configurationHash) {
+        LOGGER.debug("Parse cache {} is outdated, create a new one.", cacheFile.getName());
+        return 0;
+      }
+      long validLength = HEADER_SIZE;
+      try {
+        while (validLength < cacheFile.length()) {
+          int recordLength = in.readInt();
+          if (recordLength < KEY_SIZE || validLength + 4 + recordLength > cacheFile.length()) {
+            throw new EOFException();
+          }
+          offsets.put(new Key(in.readLong(), in.readLong()), validLength);
+          recordOffsets.add(validLength);
+          in.skipBytes(recordLength - KEY_SIZE);
+          validLength += 4 + recordLength;
+        }
+      } catch (EOFException exc) {
+        LOGGER.debug("Parse cache {} ends with an incomplete record, drop it.", cacheFile.getName());
+      }
+      LOGGER.debug("Found {} parsed texts in {}", offsets.size(), cacheFile.getName());
+      return validLength;
+    }
+  }
+
+  /**
+   * Rewrite a cache file with some of its records only.
+   * The file is first written to a temporary file then moved in place, so that an interrupted
+   * compaction never leaves a truncated file behind.
+   * @param keptOffsets offsets of the records to keep, in file order
+   */
+  private void compact(File cacheFile, List<Long> keptOffsets) throws IOException {
+    File tmpFile = new File(cacheFile.getPath() + ".tmp");
+    Map<Key, Long> keptRecords = new HashMap<>();
+    try (FileChannel oldChannel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+      out.write(readFully(oldChannel, 0, HEADER_SIZE).array());
+      for (long offset : keptOffsets) {
+        byte[] record = readRecord(oldChannel, offset);
+        Key key = getRecordKey(record);
+        // A text appended twice(by two runs sharing the file) keeps its last record only
+        if (offsets.get(key) == offset) {
+          keptRecords.put(key, (long) out.size());
+          out.writeInt(record.length);
+          out.write(record);
+        }
+      }
+    }
+    Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    LOGGER.debug("Compacted {} from {} to {} parsed texts", cacheFile.getName(), offsets.size(), keptRecords.size());
+    offsets.clear();
+    offsets.putAll(keptRecords);
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Truncated parse cache");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Read the record at some offset, without its length.
+   */
+  private static byte[] readRecord(FileChannel channel, long offset) throws IOException {
+    int recordLength = readFully(channel, offset, 4).getInt();
+    if (recordLength < KEY_SIZE) {
+      throw new IOException("Invalid parse cache record");
+    }
+    return readFully(channel, offset + 4, recordLength).array();
+  }
+
+  private static Key getRecordKey(byte[] record) {
+    ByteBuffer key = ByteBuffer.wrap(record, 0, KEY_SIZE);
+    return new Key(key.getLong(), key.getLong());
+  }
+
+  /**
+   * Decode the tokens of a record.
+   */
+  private static List<TextToken> decodeTokens(byte[] record) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, KEY_SIZE, record.length - KEY_SIZE));
+    int tokensCount = in.readInt();
+    List<TextToken> tokens = new ArrayList<>(tokensCount);
+    for (int i = 0; i < tokensCount; i++) {
+      PosTag posTag = POS_TAGS[in.readUnsignedByte()];
+      String textForm = in.readUTF();
+      String canonicalForm = in.readBoolean() ? textForm : in.readUTF();
+      tokens.add(new TextToken(posTag, textForm, canonicalForm));
+    }
+    return Collections.unmodifiableList(tokens);
+  }
+
+  /**
+   * Return the cached parse of a text, or parse it and append the result to the cache file.
+   */
+  List<TextToken> get(String text, Function<String, List<TextToken>> parser) {
+    Key key = getKey(text);
+    List<TextToken> tokens = getCached(key);
+    return tokens != null ? tokens : put(key, parser.apply(text));
+  }
+
+  /**
+   * Return the cached parse of a text.
+   * @return the tokens, or null if the text was never parsed.
+   */
+  List<TextToken> getIfPresent(String text) {
+    return getCached(getKey(text));
+  }
+
+  /**
+   * Add the parse of a text to the cache.
+   * @return the tokens as they are cached(unmodifiable)
+   */
+  List<TextToken> put(String text, List<TextToken> tokens) {
+    return put(getKey(text), tokens);
+  }
+
+  private List<TextToken> getCached(Key key) {
+    List<TextToken> tokens = decodedTexts.get(key);
+    if (tokens != null) {
+      return tokens;
+    }
+    Long offset = offsets.get(key);
+    if (offset != null) {
+      tokens = read(key, offset);
+      if (tokens != null) {
+        decodedTexts.put(key, tokens);
+      }
+    }
+    return tokens;
+  }
+
+  private List<TextToken> put(Key key, List<TextToken> tokens) {
+    List<TextToken> cachedTokens = Collections.unmodifiableList(tokens);
+    append(key, cachedTokens);
+    decodedTexts.put(key, cachedTokens);
+    return cachedTokens;
+  }
+
+  /**
+   * Read the tokens of a text from the cache file.
+   * @return the tokens, or null if the record cannot be read.
+   */
+  private List<TextToken> read(Key key, long offset) {
+    try {
+      byte[] record = readRecord(channel, offset);
+      if (getRecordKey(record).equals(key)) {
+        return decodeTokens(record);
+      }
+      LOGGER.debug("Parse cache record at {} is not the expected text", offset);
+    } catch (IOException | IndexOutOfBoundsException exc) {
+      LOGGER.debug("Could not read the parse cache record at {}", offset, exc);
+    }
+    // The text is parsed again and gets a new record
+    offsets.remove(key, offset);
+    return null;
+  }
+
+  private void append(Key key, List<TextToken> tokens) {
+    try {
+      // Records are written in one piece, so that a failure never leaves a partial record
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      DataOutputStream recordOut = new DataOutputStream(record);
+      recordOut.writeInt(0);  // record length, set below
+      recordOut.writeLong(key.high);
+      recordOut.writeLong(key.low);
+      recordOut.writeInt(tokens.size());
+      for (TextToken token : tokens) {
+        recordOut.writeByte(token.getPartOfSpeech().ordinal());
+        recordOut.writeUTF(token.getTextForm());
+        boolean sameForms = token.getCanonicalForm().equals(token.getTextForm());
+        recordOut.writeBoolean(sameForms);
+        if (!sameForms) {
+          recordOut.writeUTF(token.getCanonicalForm());
+        }
+      }
+      ByteBuffer recordBytes = ByteBuffer.wrap(record.toByteArray());
+      recordBytes.putInt(0, recordBytes.limit() - 4);
+      synchronized (this) {
+        // Another thread may have parsed the same text meanwhile
+        if (!channel.isOpen() || offsets.containsKey(key)) {
+          return;
+        }
+        long offset = channel.size();
+        while (recordBytes.hasRemaining()) {
+          channel.write(recordBytes, offset + recordBytes.position());
+        }
+        offsets.put(key, offset);
+      }
+    } catch (IOException exc) {
+      LOGGER.warn("Could not write to the parse cache, see logs.");
+      LOGGER.debug("Got exception", exc);
+    }
+  }
+
+  /**
+   * Close the cache file, the texts parsed afterwards are not cached any more.
+   */
+  synchronized void close() {
+    try {
+      channel.close();
+    } catch (IOException exc) {
+      LOGGER.warn("Could not close the parse cache, see logs.");
+      LOGGER.debug("Got exception", exc);
+    }
+  }
+}
@@ -1,66 +1,149 @@
 package jijimaku.services.langparser;
 
+import static com.atilika.kuromoji.unidic.compile.DictionaryEntry.WRITTEN_BASE_FORM;
+import static com.atilika.kuromoji.unidic.compile.DictionaryEntry.WRITTEN_FORM;
+
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.atilika.kuromoji.unidic.Token;
 import com.atilika.kuromoji.unidic.Tokenizer;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import jijimaku.AppConfig;
+import jijimaku.errors.UnexpectedError;
+import jijimaku.utils.FileManager;
 
 
 //-----------------------------------------------------------------------
 // Parse a Japanese sentence into words via the KUROMOJI(unidoct) library
 //-----------------------------------------------------------------------
+// Thread-safe: the kuromoji Tokenizer only reads its dictionaries and builds a new lattice for each call
+// so one instance serves all the threads, without a lock or a copy of the unidic tables per thread.
+// The parser itself only keeps a concurrent cache of POS rules and the parse cache(see JapaneseParseCache) between calls.
 
 public class JapaneseParser implements LangParser {
+  private static final Logger LOGGER;
+
+  static {
+    System.setProperty("logDir", FileManager.getLogsDirectory());
+    LOGGER = LogManager.getLogger();
+  }
+
+  // Change this version whenever the tokens returned for a text change, to drop the parse caches
+  private static final int PARSER_VERSION = 4;
+  private static final String PARSE_CACHE_FILE = "jijimaku.parsecache";
+
   private static final String MISSING_FORM = "*";
+  // Kuromoji tokenizes separately the pieces of a text ending with these characters
+  private static final String[] SPLIT_CHARACTERS = {"。", "、"};
+  // The unidic feature indexes count the surface, left id, right id and cost columns of the dictionary,
+  // which are not in the features array of a token
+  private static final int FEATURES_OFFSET = 4;
 
-  private static final List<String> PUNCTUATION_TOKENS = Arrays.asList(
+  private static final Set<String> PUNCTUATION_TOKENS = new HashSet<>(Arrays.asList(
       "｡", "…｡", "｢", "｣", "、", "（", "）", "."
-  );
+  ));
 
-  private static final List<String> RENTAISHI_DET = Arrays.asList(
+  private static final Set<String> RENTAISHI_DET = new HashSet<>(Arrays.asList(
       "その", "どの", "この"
-  );
+  ));
 
-  private static final List<String> PART_OF_VERB_CONJUNCTIONS = Arrays.asList(
+  private static final Set<String> PART_OF_VERB_CONJUNCTIONS = new HashSet<>(Arrays.asList(
       "て", "で", "ちゃ"
-  );
+  ));
 
-  private static final List<String> NOUN_CONJUNCTIONS = Arrays.asList(
+  private static final Set<String> NOUN_CONJUNCTIONS = new HashSet<>(Arrays.asList(
       "と", "か"
-  );
+  ));
+
+  private final Tokenizer tokenizer;
+  private final JapaneseParseCache parseCache;
 
-  private Tokenizer tokenizer;
+  // POS rules already decoded, by token features(see getPosRule)
+  private final Map<String, PosRule> posRules = new ConcurrentHashMap<>();
 
   public JapaneseParser(AppConfig config) {
+    // Proper nouns help the parser recognize names in sentences, see JapaneseUserDictionary
+    String properNounsDict;
+    try {
+      properNounsDict = JapaneseUserDictionary.load(config);
+    } catch (IOException exc) {
+      LOGGER.error("Problem reading the proper nouns, see logs.");
+      LOGGER.debug("Got exception", exc);
+      throw new UnexpectedError();
+    }
+    tokenizer = buildTokenizer(properNounsDict);
+    parseCache = config.getParseCache() ? openParseCache(properNounsDict) : null;
+  }
 
+  private static Tokenizer buildTokenizer(String properNounsDict) {
     try {
-      // Use YAML "properNouns" option to indicate a custom dict of proper nouns with their pronunciation
-      // This is to help the parser recognize proper nouns in sentences
-      Map<String,String> properNouns = config.getProperNouns();
-      if (properNouns != null) {
-        // Build custom user dict file in KUROMOJI format containing all the proper nouns
-        // For infos on format see: https://github.com/elastic/elasticsearch-analysis-kuromoji#user-dictionary
-        String properNounsDict = "";
-        for (Map.Entry<String, String> wordTrad : properNouns.entrySet()) {
-          properNounsDict += wordTrad.getKey() + "," + wordTrad.getKey() + "," + wordTrad.getValue() + ",カスタム名詞\n";
-        }
+      if (properNounsDict != null) {
         ByteArrayInputStream properNounsStream = new ByteArrayInputStream(properNounsDict.getBytes("UTF-8"));
-        tokenizer = new Tokenizer.Builder().userDictionary(properNounsStream).build();
+        return new Tokenizer.Builder().userDictionary(properNounsStream).build();
       } else {
-        tokenizer = new Tokenizer.Builder().build();
+        return new Tokenizer.Builder().build();
       }
     } catch (IOException e) {
       e.printStackTrace();
       System.exit(1);
+      return null;
+    }
+  }
+
+  /**
+   * Open the parse cache in the app directory, the cache is versioned by everything that changes the parse.
+   * @return the cache, or null if it cannot be opened.
+   */
+  private static JapaneseParseCache openParseCache(String properNounsDict) {
+    File cacheFile = new File(FileManager.getAppDirectory() + "/" + PARSE_CACHE_FILE);
+    String configuration = PARSER_VERSION + "\n" + (properNounsDict != null ? properNounsDict : "");
+    try {
+      return new JapaneseParseCache(cacheFile, configuration);
+    } catch (IOException exc) {
+      LOGGER.warn("Could not open the parse cache {}, captions will always be parsed.", cacheFile.getName());
+      LOGGER.debug("Got exception", exc);
+      return null;
+    }
+  }
+
+  /**
+   * The POS tag of a token given its features: most features give the tag directly,
+   * but for a few of them it also depends on the written form of the token.
+   */
+  private static class PosRule {
+    private final PosTag posTag;
+    private final Set<String> forms;
+    private final PosTag formsPosTag;
+
+    PosRule(PosTag posTag) {
+      this(posTag, null, null);
+    }
+
+    /**
+     * Constructor.
+     * @param forms written forms that have the tag formsPosTag instead of posTag
+     */
+    PosRule(PosTag posTag, Set<String> forms, PosTag formsPosTag) {
+      this.posTag = posTag;
+      this.forms = forms;
+      this.formsPosTag = formsPosTag;
+    }
+
+    PosTag getPosTag(String writtenForm) {
+      return forms != null && forms.contains(writtenForm) ? formsPosTag : posTag;
     }
   }
 
@@ -69,75 +152,97 @@ public class JapaneseParser implements LangParser {
    * The source for Japanese word feature to Universal Dependency mapping
    * is http://universaldependencies.org/ja/overview/morphology.html
    */
-  private PosTag getTokenPosTag(Token previousToken, Token currentToken, String writtenForm) {
-    // Get the word features from kuromoji (index 0 & 1 corresponds to japanese grammatical type & subtype)
-    String[] features = currentToken.getAllFeaturesArray();
-    String[] previousFeatures = previousToken == null ? null : previousToken.getAllFeaturesArray();
-
+  private PosTag getTokenPosTag(String[] previousFeatures, String previousWrittenForm, String[] features, String writtenForm) {
     // Strangely Kuromoji does not classify correctly some punctuation ?
     // Force punctuation characters to be classified as punctuation
     if (PUNCTUATION_TOKENS.contains(writtenForm)) {
       return PosTag.PUNCT;
     }
+    return getPosRule(previousFeatures, previousWrittenForm, features).getPosTag(writtenForm);
+  }
 
-    switch (features[1]) {
+  /**
+   * Return the POS rule for some token features.
+   * The rule only depends on a few features(index 0 & 1 corresponds to japanese grammatical type & subtype),
+   * on the type of the previous token and on whether it is the て/で linking a verb to an auxiliary verb.
+   * There are not many combinations so the rules are decoded once and cached by these features.
+   */
+  private PosRule getPosRule(String[] previousFeatures, String previousWrittenForm, String[] features) {
+    String previousType = previousFeatures == null ? "" : previousFeatures[0];
+    boolean afterVerbConjunction = previousFeatures != null && previousFeatures[1].equals("接続助詞")
+        && PART_OF_VERB_CONJUNCTIONS.contains(previousWrittenForm);
+    String key = features[0] + "," + features[1] + "," + previousType + "," + afterVerbConjunction;
+    return posRules.computeIfAbsent(key, k -> decodePosRule(previousType, afterVerbConjunction, features[0], features[1]));
+  }
+
+  private static PosRule decodePosRule(String previousType, boolean afterVerbConjunction, String type, String subtype) {
+    switch (subtype) {
       case "数詞":
-        return PosTag.NUM;
+        return new PosRule(PosTag.NUM);
       case "固有名詞":
-        return PosTag.PROPN;
+        return new PosRule(PosTag.PROPN);
       case "副助詞":
       case "終助詞":
-        return PosTag.PART;
+        return new PosRule(PosTag.PART);
       case "接続助詞":
       case "準体助詞":
-        return PosTag.SCONJ;
+        return new PosRule(PosTag.SCONJ);
       case "格助詞":
-        return NOUN_CONJUNCTIONS.contains(writtenForm) ? PosTag.CCONJ : PosTag.ADP;
+        return new PosRule(PosTag.ADP, NOUN_CONJUNCTIONS, PosTag.CCONJ);
       case "普通名詞":
-        return PosTag.NOUN;
+        return new PosRule(PosTag.NOUN);
       default:
         break;
     }
 
-    switch (features[0]) {
+    switch (type) {
       case "連体詞":
-        return RENTAISHI_DET.contains(writtenForm) ? PosTag.DET : PosTag.ADJ;
+        return new PosRule(PosTag.ADJ, RENTAISHI_DET, PosTag.DET);
       case "形容詞":
-        if (features[1].equals("非自立可能") && previousFeatures != null
-            && (previousFeatures[0].equals("形容詞") || previousFeatures[0].equals("形状詞"))) {
-          return PosTag.AUX;
+        if (subtype.equals("非自立可能") && (previousType.equals("形容詞") || previousType.equals("形状詞"))) {
+          return new PosRule(PosTag.AUX);
         }
-        return PosTag.ADJ;
+        return new PosRule(PosTag.ADJ);
       case "形状詞":
-        return PosTag.ADJ;
+        return new PosRule(PosTag.ADJ);
       case "副詞":
-        return PosTag.ADV;
+        return new PosRule(PosTag.ADV);
       case "感動詞":
-        return PosTag.INTJ;
+        return new PosRule(PosTag.INTJ);
       case "接頭辞":
       case "接尾辞":
-        return PosTag.NOUN;
+        return new PosRule(PosTag.NOUN);
       case "動詞":
-        if (features[1].equals("非自立可能") && previousFeatures != null && previousFeatures[0].equals("動詞")) {
-          return PosTag.AUX;
+        // Verbs like いる, しまう or くる are auxiliary after a verb or its て form(食べている, 見てしまった)
+        if (subtype.equals("非自立可能") && (previousType.equals("動詞") || afterVerbConjunction)) {
+          return new PosRule(PosTag.AUX);
         }
-        return PosTag.VERB;
+        return new PosRule(PosTag.VERB);
       case "助動詞":
-        return PosTag.AUX;
+        return new PosRule(PosTag.AUX);
       case "接続詞":
-        return PosTag.CCONJ;
+        return new PosRule(PosTag.CCONJ);
       case "代名詞":
-        return PosTag.PRON;
+        return new PosRule(PosTag.PRON);
       case "補助記号":
-        return PosTag.SYM;
+        return new PosRule(PosTag.SYM);
       case "空白":
-        return PosTag.X;
+        return new PosRule(PosTag.X);
 
       default:
-        return PosTag.UNKNOWN;
+        return new PosRule(PosTag.UNKNOWN);
     }
   }
 
+  /**
+   * Return a feature of a token, the same as the kuromoji Token getter for this feature.
+   * @param index index in the unidic features, see com.atilika.kuromoji.unidic.compile.DictionaryEntry
+   */
+  private static String getFeature(String[] features, int index) {
+    int featureIndex = index - FEATURES_OFFSET;
+    return featureIndex < features.length ? features[featureIndex] : MISSING_FORM;
+  }
+
   /**
    * Use the kuromoji library to parse a text, and map the results to our custom TextToken class.
    */
@@ -145,43 +250,122 @@ public class JapaneseParser implements LangParser {
     // We use kuromoji-unidoct as parsing dictionary (larger)
     // to use the default ipadic, replace the kuromoji JAR and use the following code instead:
     // Tokenizer tokenizer = Tokenizer.builder().mode(Mode.SEARCH).build(); then => token.getBaseForm()
-    List<Token> kuroTokens = tokenizer.tokenize(text);
-    return IntStream.range(0, kuroTokens.size()).mapToObj(idx -> {
-      Token token = kuroTokens.get(idx);
-      Token previousToken = idx == 0 ? null : kuroTokens.get(idx);
-      String writtenForm = !token.getWrittenForm().equals(MISSING_FORM)
-              ? token.getWrittenForm()
-              : token.getSurface();
-      String writtenBaseForm = !token.getWrittenBaseForm().equals(MISSING_FORM)
-              ? token.getWrittenBaseForm()
-              : null;
-      PosTag pos = getTokenPosTag(previousToken, token, writtenForm);
-      return new TextToken(pos, writtenForm, writtenBaseForm);
-    }).collect(Collectors.toList());
+    return toTextTokens(tokenizer.tokenize(text));
   }
 
-  @Override
-  public List<TextToken> syntaxicParse(String text) {
-    // First pass with kuromoji library
-    List<TextToken> tokens = kuromojiParse(text);
-
-    // In a second pass we want to merge some SCONJ with the previous VERBS/AUX
-    // This is so that for example 継ぎ-まし-て appears as one word in the subtitles
-    List<TextToken> filteredTokens = new ArrayList<>();
-    for (int i = 0; i < tokens.size(); i++) {
-      TextToken token = tokens.get(i);
-      TextToken lastOk = filteredTokens.isEmpty() ? null : filteredTokens.get(filteredTokens.size() - 1);
-      boolean isPartOfVerbConj = (token.getPartOfSpeech() == PosTag.SCONJ && PART_OF_VERB_CONJUNCTIONS.contains(token.getTextForm()));
+  /**
+   * Map the kuromoji tokens of one text to our custom TextToken class.
+   */
+  private List<TextToken> toTextTokens(List<Token> kuroTokens) {
+    // Kuromoji splits the features string on each call(getWrittenForm() too), split it only once per token.
+    // Tokens do not expose their dictionary word id, so the features cannot be cached across tokens.
+    String[][] features = new String[kuroTokens.size()][];
+    for (int idx = 0; idx < kuroTokens.size(); idx++) {
+      features[idx] = kuroTokens.get(idx).getAllFeaturesArray();
+    }
+    List<TextToken> tokens = new ArrayList<>(kuroTokens.size());
+    String previousWrittenForm = null;
+    for (int idx = 0; idx < kuroTokens.size(); idx++) {
+      Token token = kuroTokens.get(idx);
+      String[] previousFeatures = idx == 0 ? null : features[idx - 1];
+      String writtenForm = getFeature(features[idx], WRITTEN_FORM);
+      if (writtenForm.equals(MISSING_FORM)) {
+        writtenForm = token.getSurface();
+      }
+      String writtenBaseForm = getFeature(features[idx], WRITTEN_BASE_FORM);
+      if (writtenBaseForm.equals(MISSING_FORM)) {
+        writtenBaseForm = null;
+      }
+      PosTag pos = getTokenPosTag(previousFeatures, previousWrittenForm, features[idx], writtenForm);
+      previousWrittenForm = writtenForm;
+
+      // Merge some SCONJ with the previous VERBS/AUX
+      // This is so that for example 継ぎ-まし-て appears as one word in the subtitles
+      TextToken lastOk = tokens.isEmpty() ? null : tokens.get(tokens.size() - 1);
+      boolean isPartOfVerbConj = (pos == PosTag.SCONJ && PART_OF_VERB_CONJUNCTIONS.contains(writtenForm));
       if (lastOk != null
           && (lastOk.getPartOfSpeech() == PosTag.AUX || lastOk.getPartOfSpeech() == PosTag.VERB)
           && isPartOfVerbConj) {
-        TextToken completeVerb = new TextToken(lastOk.getPartOfSpeech(), lastOk.getTextForm() + token.getTextForm(), lastOk.getCanonicalForm());
-        filteredTokens.set(filteredTokens.size() - 1, completeVerb);
+        TextToken completeVerb = new TextToken(lastOk.getPartOfSpeech(), lastOk.getTextForm() + writtenForm, lastOk.getCanonicalForm());
+        tokens.set(tokens.size() - 1, completeVerb);
         continue;
       }
-      filteredTokens.add(token);
+      tokens.add(new TextToken(pos, writtenForm, writtenBaseForm));
     }
-    return filteredTokens;
+    return tokens;
+  }
+
+  /**
+   * Parse a text, or get its tokens from the parse cache.
+   */
+  @Override
+  public List<TextToken> syntaxicParse(String text) {
+    return parseCache != null ? parseCache.get(text, this::kuromojiParse) : kuromojiParse(text);
   }
-}
 
+  /**
+   * Parse several texts, the texts that are not in the parse cache are tokenized together.
+   * Kuromoji tokenizes its input piece by piece, each piece ending after a 。 or a 、(TokenizerBase split mode,
+   * on by default), so texts ending with one of them are joined with the next one: the joined text is cut at the same
+   * places and gives the same tokens. The tokens are then given back to each text by their position in the joined text.
+   */
+  @Override
+  public List<List<TextToken>> syntaxicParseAll(List<String> texts) {
+    List<List<TextToken>> tokens = new ArrayList<>(Collections.nCopies(texts.size(), null));
+    StringBuilder joinedTexts = new StringBuilder();
+    List<Integer> joinedIndexes = new ArrayList<>();
+    for (int idx = 0; idx < texts.size(); idx++) {
+      String text = texts.get(idx);
+      List<TextToken> cachedTokens = parseCache != null ? parseCache.getIfPresent(text) : null;
+      if (cachedTokens != null) {
+        tokens.set(idx, cachedTokens);
+        continue;
+      }
+      joinedTexts.append(text);
+      joinedIndexes.add(idx);
+      if (!endsWithSplitCharacter(text)) {
+        tokenizeJoined(texts, joinedTexts.toString(), joinedIndexes, tokens);
+        joinedTexts.setLength(0);
+        joinedIndexes.clear();
+      }
+    }
+    if (!joinedIndexes.isEmpty()) {
+      tokenizeJoined(texts, joinedTexts.toString(), joinedIndexes, tokens);
+    }
+    return tokens;
+  }
+
+  private static boolean endsWithSplitCharacter(String text) {
+    return text.endsWith(SPLIT_CHARACTERS[0]) || text.endsWith(SPLIT_CHARACTERS[1]);
+  }
+
+  /**
+   * Tokenize some texts joined together and set the tokens of each text.
+   * @param joinedIndexes indexes of the joined texts in texts, in the order they were joined
+   */
+  private void tokenizeJoined(List<String> texts, String joinedText, List<Integer> joinedIndexes, List<List<TextToken>> tokens) {
+    List<Token> kuroTokens = tokenizer.tokenize(joinedText);
+    int tokenIdx = 0;
+    int textEnd = 0;
+    for (int idx : joinedIndexes) {
+      String text = texts.get(idx);
+      int textStart = tokenIdx;
+      textEnd += text.length();
+      while (tokenIdx < kuroTokens.size() && kuroTokens.get(tokenIdx).getPosition() < textEnd) {
+        tokenIdx++;
+      }
+      List<TextToken> textTokens = toTextTokens(kuroTokens.subList(textStart, tokenIdx));
+      tokens.set(idx, parseCache != null ? parseCache.put(text, textTokens) : textTokens);
+    }
+  }
+
+  /**
+   * Close the parse cache file.
+   */
+  @Override
+  public void close() {
+    if (parseCache != null) {
+      parseCache.close();
+    }
+  }
+}
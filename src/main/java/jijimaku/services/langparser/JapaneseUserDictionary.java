@@ -0,0 +1,157 @@
+package jijimaku.services.langparser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import jijimaku.AppConfig;
+import jijimaku.errors.UnexpectedError;
+import jijimaku.utils.FileManager;
+
+
+/**
+ * Kuromoji user dictionary of proper nouns, to help the parser recognize names(characters, places...) in sentences.
+ * Proper nouns come from the "properNouns" option and from the name list of the "properNounsFile" option.
+ * Name lists can be large, so the user dictionary is compiled once into a file of the app directory
+ * and compiled again only when the proper nouns or the length or last modified time of the name list change.
+ *
+ * <p>Name list format: one name per line, followed by its pronunciation(separated by a tab or a comma).
+ * Empty lines and lines starting with # are ignored.
+ */
+class JapaneseUserDictionary {
+  private static final Logger LOGGER;
+
+  static {
+    System.setProperty("logDir", FileManager.getLogsDirectory());
+    LOGGER = LogManager.getLogger();
+  }
+
+  // Change this version whenever the compiled format changes, to compile the proper nouns again
+  private static final int COMPILER_VERSION = 1;
+  private static final String COMPILED_FILE = "jijimaku.propernouns";
+  private static final String HASH_PREFIX = "# source ";
+  private static final String NAME_LIST_SPLIT_RE = "\\s*[\\t,]\\s*";
+
+  private JapaneseUserDictionary() {
+  }
+
+  /**
+   * Return the user dictionary in KUROMOJI format, compiled from the config proper nouns.
+   * For infos on format see: https://github.com/elastic/elasticsearch-analysis-kuromoji#user-dictionary
+   * @return the user dictionary, or null if there are no proper nouns
+   */
+  static String load(AppConfig config) throws IOException {
+    Map<String, String> properNouns = config.getProperNouns();
+    File nameListFile = config.getProperNounsFile() != null
+        ? new File(FileManager.getAppDirectory() + "/" + config.getProperNounsFile())
+        : null;
+    if (properNouns.isEmpty() && nameListFile == null) {
+      return null;
+    }
+
+    // The compiled dictionary starts with the hash of the proper nouns it was compiled from.
+    // The name list is identified by its length and last modified time, so that it is not read(nor its encoding
+    // detected) while it does not change.
+    String nameListVersion = nameListFile != null
+        ? nameListFile.getAbsolutePath() + ":" + nameListFile.length() + ":" + nameListFile.lastModified()
+        : "";
+    String sourceHash = hash(COMPILER_VERSION + "\n" + new TreeMap<>(properNouns) + "\n" + nameListVersion);
+    File compiledFile = new File(FileManager.getAppDirectory() + "/" + COMPILED_FILE);
+    if (compiledFile.isFile()) {
+      String compiled = new String(Files.readAllBytes(compiledFile.toPath()), StandardCharsets.UTF_8);
+      if (compiled.startsWith(HASH_PREFIX + sourceHash + "\n")) {
+        return withoutHeader(compiled);
+      }
+    }
+
+    LOGGER.info("Compiling proper nouns(this is done only when they change)...");
+    String nameList = nameListFile != null ? FileManager.fileAnyEncodingToString(nameListFile) : "";
+    String compiled = compile(sourceHash, properNouns, nameList);
+    File tmpFile = new File(compiledFile.getPath() + ".tmp");
+    try {
+      Files.write(tmpFile.toPath(), compiled.getBytes(StandardCharsets.UTF_8));
+      Files.move(tmpFile.toPath(), compiledFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException exc) {
+      LOGGER.warn("Could not write the compiled proper nouns {}, they will be compiled again.", compiledFile.getName());
+      LOGGER.debug("Got exception", exc);
+    }
+    return withoutHeader(compiled);
+  }
+
+  private static String withoutHeader(String compiled) {
+    return compiled.substring(compiled.indexOf('\n') + 1);
+  }
+
+  /**
+   * Merge the proper nouns of the config and of the name list into a user dictionary.
+   * Names are sorted and each name appears once(the config proper nouns win over the name list).
+   */
+  private static String compile(String sourceHash, Map<String, String> properNouns, String nameList) throws IOException {
+    Map<String, String> pronunciations = new TreeMap<>();
+    try (BufferedReader reader = new BufferedReader(new StringReader(nameList))) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] namePronunciation = line.split(NAME_LIST_SPLIT_RE);
+        if (namePronunciation.length != 2 || namePronunciation[0].isEmpty() || namePronunciation[1].isEmpty()) {
+          LOGGER.debug("Ignore invalid proper noun line: {}", line);
+          continue;
+        }
+        pronunciations.put(namePronunciation[0], namePronunciation[1]);
+      }
+    }
+    for (Map.Entry<String, String> wordTrad : properNouns.entrySet()) {
+      if (wordTrad.getKey().contains(",") || wordTrad.getValue().contains(",")) {
+        LOGGER.warn("Ignore proper noun {}: it must not contain commas.", wordTrad.getKey());
+        continue;
+      }
+      pronunciations.put(wordTrad.getKey(), wordTrad.getValue());
+    }
+
+    StringBuilder dict = new StringBuilder(HASH_PREFIX).append(sourceHash).append("\n");
+    for (Map.Entry<String, String> wordTrad : pronunciations.entrySet()) {
+      dict.append(wordTrad.getKey()).append(",").append(wordTrad.getKey()).append(",")
+          .append(toKatakana(wordTrad.getValue())).append(",カスタム名詞\n");
+    }
+    LOGGER.debug("{} proper nouns compiled", pronunciations.size());
+    return dict.toString();
+  }
+
+  /**
+   * Kuromoji readings are in katakana, convert the hiragana of a pronunciation.
+   */
+  private static String toKatakana(String pronunciation) {
+    StringBuilder katakana = new StringBuilder(pronunciation.length());
+    for (int i = 0; i < pronunciation.length(); i++) {
+      char c = pronunciation.charAt(i);
+      katakana.append(c >= 'ぁ' && c <= 'ゖ' ? (char) (c + ('ァ' - 'ぁ')) : c);
+    }
+    return katakana.toString();
+  }
+
+  private static String hash(String text) {
+    try {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8))) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException exc) {
+      LOGGER.error("MD5 is not available");
+      throw new UnexpectedError();
+    }
+  }
+}
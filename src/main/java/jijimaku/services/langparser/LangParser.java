@@ -1,10 +1,12 @@
 package jijimaku.services.langparser;
 
+import java.util.ArrayList;
 import java.util.List;
 
 
 // Parse a sentence into grammatical words
 // This interface can be implemented by different classes to parse different languages
+// Implementations must be thread-safe: syntaxicParse is called concurrently when captions are annotated in parallel
 public interface LangParser {
 
   // Part Of Speech universal tags
@@ -61,6 +63,21 @@ public interface LangParser {
     }
   }
 
+  // Thread-safe, the returned tokens are immutable
   List<TextToken> syntaxicParse(String text);
+
+  // Parse several texts(e.g. a batch of captions) in one call
+  // Return the tokens of each text, the same as syntaxicParse would return for this text
+  default List<List<TextToken>> syntaxicParseAll(List<String> texts) {
+    List<List<TextToken>> tokens = new ArrayList<>(texts.size());
+    for (String text : texts) {
+      tokens.add(syntaxicParse(text));
+    }
+    return tokens;
+  }
+
+  // Release the files held by the parser, called once when the app exits
+  default void close() {
+  }
 }
 
@@ -0,0 +1,81 @@
+package jijimaku.utils;
+
+
+/**
+ * The text of a caption as it is parsed: the raw caption content without line breaks(<br>, <br />...)
+ * and ASS override tags({\pos(..)}, {\k20}...).
+ * Other HTML tags(<i>...) and whitespace are kept, the parser always got them.
+ * It keeps for each char of the text its offset in the raw content, so that styles can be inserted in the raw
+ * content at the position of some text.
+ */
+class CaptionText {
+  private final String text;
+  // Offset in the raw content of each char of the text
+  private final int[] rawOffsets;
+
+  private CaptionText(String text, int[] rawOffsets) {
+    this.text = text;
+    this.rawOffsets = rawOffsets;
+  }
+
+  /**
+   * Normalize a raw caption content in a single pass.
+   */
+  static CaptionText normalize(String content) {
+    StringBuilder text = new StringBuilder(content.length());
+    int[] rawOffsets = new int[content.length()];
+    int idx = 0;
+    while (idx < content.length()) {
+      int markupEnd = markupEnd(content, idx);
+      if (markupEnd > idx) {
+        idx = markupEnd;
+        continue;
+      }
+      rawOffsets[text.length()] = idx;
+      text.append(content.charAt(idx));
+      idx++;
+    }
+    return new CaptionText(text.toString(), rawOffsets);
+  }
+
+  /**
+   * Return the end of the tag starting at some offset of a content, or the offset itself if there is none.
+   * Tags are line breaks(<br, optional whitespace, an optional slash then >) and ASS override tags.
+   */
+  private static int markupEnd(String content, int offset) {
+    char c = content.charAt(offset);
+    if (c == '{') {
+      int end = content.indexOf('}', offset + 1);
+      return end >= 0 ? end + 1 : offset;
+    }
+    if (c != '<' || !content.startsWith("<br", offset)) {
+      return offset;
+    }
+    int end = offset + 3;
+    while (end < content.length() && isRegexWhitespace(content.charAt(end))) {
+      end++;
+    }
+    if (end < content.length() && content.charAt(end) == '/') {
+      end++;
+    }
+    return end < content.length() && content.charAt(end) == '>' ? end + 1 : offset;
+  }
+
+  /**
+   * Same chars as \s in a regexp.
+   */
+  private static boolean isRegexWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  String getText() {
+    return text;
+  }
+
+  /**
+   * Offset in the raw content of the char at some offset of the text.
+   */
+  int getRawOffset(int offset) {
+    return rawOffsets[offset];
+  }
+}
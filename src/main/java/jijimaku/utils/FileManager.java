@@ -1,12 +1,15 @@
 package jijimaku.utils;
 
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -14,6 +17,7 @@ import com.ibm.icu.text.CharsetDetector;
 import com.ibm.icu.text.CharsetMatch;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BOMInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -63,9 +67,13 @@ public class FileManager {
    * Return the file contents as a String.
    */
   public static String fileAnyEncodingToString(File f) throws IOException {
+    return bytesAnyEncodingToString(IOUtils.toByteArray(new FileInputStream(f)), f);
+  }
 
-    byte[] byteData = IOUtils.toByteArray(new FileInputStream(f));
-
+  /**
+   * Decode the contents of a text file already read, detecting encoding like fileAnyEncodingToString.
+   */
+  public static String bytesAnyEncodingToString(byte[] byteData, File f) {
     CharsetDetector detector = new CharsetDetector();
 
     String unicodeData = detector.getString(byteData, null);
@@ -81,14 +89,25 @@ public class FileManager {
     return unicodeData;
   }
 
-  public static void writeStringArrayToFile(String fileFullPath, String[] lines) throws IOException {
-    BufferedWriter bw = Files.newBufferedWriter(Paths.get(fileFullPath), StandardCharsets.UTF_8);
-    for (String line : lines) {
-      bw.write(line);
-      bw.newLine();
+  /**
+   * Open a text file for streaming, detecting the encoding from the beginning of the file.
+   * Contrary to fileAnyEncodingToString the whole file is never loaded in memory.
+   */
+  public static Reader fileAnyEncodingToReader(File f) throws IOException {
+    InputStream input = new BufferedInputStream(new BOMInputStream(new FileInputStream(f)));
+    try {
+      CharsetDetector detector = new CharsetDetector();
+      detector.setText(input);
+      CharsetMatch match = detector.detect();
+      if (match != null && match.getConfidence() > 60) {
+        LOGGER.debug("{} has a detected encoding: {}", f.getName(), match.getName());
+        return new BufferedReader(match.getReader());
+      }
+      return new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+    } catch (IOException exc) {
+      input.close();
+      throw exc;
     }
-    bw.flush();
-    bw.close();
   }
 }
 
@@ -0,0 +1,80 @@
+package jijimaku.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded cache that evicts the least recently used entries.
+ * All methods are synchronized so that the cache can be shared by several threads,
+ * and hits/misses are counted to monitor the cache efficiency.
+ */
+public class LruCache<K, V> {
+  private final int capacity;
+  private final Map<K, V> map;
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * Constructor.
+   * @param capacity maximum number of entries kept in the cache
+   */
+  public LruCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("LRU cache capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > LruCache.this.capacity;
+      }
+    };
+  }
+
+  /**
+   * Return the value cached for a key, or null if absent.
+   */
+  public synchronized V get(K key) {
+    V value = map.get(key);
+    if (value != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return value;
+  }
+
+  public synchronized void put(K key, V value) {
+    map.put(key, value);
+  }
+
+  public synchronized void clear() {
+    map.clear();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public synchronized int size() {
+    return map.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Short description of the cache usage, for logs.
+   */
+  public synchronized String getStatistics() {
+    long lookups = hits + misses;
+    return String.format("%d hits, %d misses(%.1f%% hit rate), %d/%d entries",
+        hits, misses, lookups > 0 ? 100.0 * hits / lookups : 0.0, map.size(), capacity);
+  }
+}
@@ -0,0 +1,51 @@
+package jijimaku.utils;
+
+
+/**
+ * One caption(event) of a subtitle file: its timing, its style and its text.
+ * Line breaks are stored as <br /> in the text whatever the file format, ASS override tags are kept as they are.
+ */
+class SubtitleCaption {
+  static final String LINE_BREAK = "<br />";
+
+  private final int start;
+  private final int end;
+  private String style;
+  private String content;
+
+  /**
+   * Constructor.
+   * @param start start time in ms
+   * @param end end time in ms
+   */
+  SubtitleCaption(int start, int end, String style, String content) {
+    this.start = start;
+    this.end = end;
+    this.style = style;
+    this.content = content;
+  }
+
+  int getStart() {
+    return start;
+  }
+
+  int getEnd() {
+    return end;
+  }
+
+  String getStyle() {
+    return style;
+  }
+
+  void setStyle(String style) {
+    this.style = style;
+  }
+
+  String getContent() {
+    return content;
+  }
+
+  void setContent(String content) {
+    this.content = content;
+  }
+}
@@ -1,36 +1,26 @@
 package jijimaku.utils;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.StandardCharsets;
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.io.StringReader;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.input.BOMInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import jijimaku.errors.SubtitleParsingException;
 import jijimaku.errors.UnexpectedError;
 
-import subtitleFile.Caption;
-import subtitleFile.FatalParsingException;
-import subtitleFile.FormatASS;
-import subtitleFile.FormatSRT;
-import subtitleFile.Style;
-import subtitleFile.TimedTextFileFormat;
-import subtitleFile.TimedTextObject;
-
 
 /**
  * A class to work with ASS/SRT subtitle files.
- * Underwood for now we use the multi-format subtitle library https://github.com/JDaren/subtitleConverter
+ * Files are read with SubtitleReader and written in the ASS format with SubtitleWriter,
+ * the annotation of a caption is written right after the caption.
  */
 public class SubtitleFile {
   private static final Logger LOGGER;
@@ -47,130 +37,136 @@ public class SubtitleFile {
     Default
   }
 
-  private final TimedTextObject timedText;
-  private final Hashtable<String, Style> styles;
-  private final TreeMap<Integer, Caption> annotationCaptions;
+  private final String title;
+  private final String author;
+  private final SubtitleTemplate template;
+
+  // Captions in file order, with their normalized text and their annotation(null if none)
+  private final List<SubtitleCaption> captions;
+  private final List<CaptionText> captionTexts;
+  private final SubtitleCaption[] annotationCaptions;
 
   // Caption iterator
-  private final Iterator<Map.Entry<Integer, Caption>> captionIter;
-  private Map.Entry<Integer, Caption> currentCaption;
+  private int currentCaption = -1;
 
   private int nbCaptionAnnotated = 0;
 
-  public SubtitleFile(String fileName, String fileContents, String stylesStr) throws IOException, FatalParsingException {
+  /**
+   * Constructor.
+   * @param template styles and Jijimaku mark of the annotated file
+   */
+  public SubtitleFile(String fileName, String fileContents, SubtitleTemplate template)
+      throws IOException, SubtitleParsingException {
     LOGGER.debug("Parsing subtitle file {}", fileName);
 
-    TimedTextFileFormat timedTextFormat;
-    switch (FilenameUtils.getExtension(fileName)) {
-      case "ass":
-        timedTextFormat = new FormatASS();
-        break;
-      case "srt":
-        timedTextFormat = new FormatSRT();
-        break;
-      default:
-        LOGGER.error("invalid subtitle file extension file: {}", fileName);
-        throw new UnexpectedError();
-    }
-
-    // Convert String to InputStream to match subtitleFile API
-    byte[] byteData = fileContents.getBytes("UTF-8");
-    // Must use BOMInputStream otherwise files with BOM will broke :(((
-    // => http://stackoverflow.com/questions/4897876/reading-utf-8-bom-marker
-    try (BOMInputStream inputStream = new BOMInputStream(new ByteArrayInputStream(byteData))) {
-      timedText = timedTextFormat.parseFile(fileName, inputStream, StandardCharsets.UTF_8);
+    SubtitleReader subtitle;
+    try (BufferedReader reader = new BufferedReader(new StringReader(fileContents))) {
+      switch (FilenameUtils.getExtension(fileName)) {
+        case "ass":
+          subtitle = SubtitleReader.readAss(reader);
+          break;
+        case "srt":
+          subtitle = SubtitleReader.readSrt(reader);
+          break;
+        default:
+          LOGGER.error("invalid subtitle file extension file: {}", fileName);
+          throw new UnexpectedError();
+      }
     }
 
-    if (timedText.warnings.length() > "List of non fatal errors produced during parsing:\n\n".length()) {
+    if (!subtitle.getWarnings().isEmpty()) {
       LOGGER.warn("There was some warnings during parsing. See logs.");
-      LOGGER.debug("Got warnings: {}", "\n" + timedText.warnings);
+      LOGGER.debug("Skipped invalid lines: {}", "\n" + String.join("\n", subtitle.getWarnings()));
     }
 
-    styles = parseStyles(stylesStr);
-    timedText.styling = styles;
-    timedText.description = JIJIMAKU_SIGNATURE;
-    annotationCaptions = new TreeMap<>();
+    title = subtitle.getTitle() != null && !subtitle.getTitle().isEmpty() ? subtitle.getTitle() : fileName;
+    author = subtitle.getAuthor();
+    this.template = template;
+    captions = subtitle.getCaptions();
+    annotationCaptions = new SubtitleCaption[captions.size()];
 
-    // Initialization: add jijimaku mark and set style to Default
-    addJijimakuMark();
-    timedText.captions.values().stream().forEach(c -> c.style = styles.get("Default"));
+    // Initialization: set style to Default
+    captions.forEach(c -> c.setStyle(SubStyle.Default.toString()));
 
-    captionIter = timedText.captions.entrySet().iterator();
-  }
-
-  /**
-   * Set subtitles display styles.
-   * @param stylesStr String representing the styles in ASS format. See DEFAULT_STYLES for an example.
-   */
-  private Hashtable<String, Style> parseStyles(String stylesStr) {
-    try {
-      // Read subtitle styles from config, or use default if missing
-      TimedTextFileFormat emptyTimedText = new FormatASS();
-      TimedTextObject styledTimedText = emptyTimedText.parseFile("", new ByteArrayInputStream(stylesStr.getBytes("UTF-8")));
-      return styledTimedText.styling;
-    } catch (UnsupportedEncodingException exc) {
-      LOGGER.error("Cannot understand subtitle styles definition. Possibly some characters not encoded in UTF8?");
-      LOGGER.debug("Got exception when parsing styles {}", stylesStr, exc);
-      throw new UnexpectedError();
-    } catch (FatalParsingException | IOException exc) {
-      LOGGER.error("The subtitle styles seem invalid");
-      LOGGER.debug("Got exception when parsing styles {}", stylesStr, exc);
-      throw new UnexpectedError();
-    }
+    captionTexts = captions.stream().map(c -> CaptionText.normalize(c.getContent())).collect(Collectors.toList());
   }
 
   public boolean hasNext() {
-    return captionIter.hasNext();
+    return currentCaption + 1 < captions.size();
   }
 
   public String nextCaption() {
-    currentCaption = captionIter.next();
-    return currentCaption.getValue().content.replaceAll("<br\\s*/?>", "");
+    currentCaption++;
+    return captionTexts.get(currentCaption).getText();
   }
 
-  public void colorizeCaptionWord(String word, String htmlHexColor) {
-    StringBuilder content = new StringBuilder(currentCaption.getValue().content);
+  /**
+   * Return the text of all the captions, in the order they are returned by nextCaption.
+   * Line breaks and ASS override tags are removed from the text, see CaptionText.
+   */
+  public List<String> getCaptionTexts() {
+    return captionTexts.stream().map(CaptionText::getText).collect(Collectors.toList());
+  }
 
-    // We want to find the word even if it spread over multiple lines
-    // Solution is from https://stackoverflow.com/a/9896878/257272
-    // Build a regexp with potential new line <br />* after every character except the last one.
-    // (?!$) is a negative lookahead meaning the line below won't match the last character of the String
-    String regex = word.replaceAll("(.(?!$))", "$1(?:<br />)*");
-    Matcher matcher = Pattern.compile(regex).matcher(content.toString());
-    if (!matcher.find()) {
-      LOGGER.debug("Couldn't colorize word {} because it wasn't found in {}", word, content.toString());
+  /**
+   * Highlight some words of the current caption, each word with its color.
+   * @param offsets offset of each word in the caption text returned by nextCaption(-1 if the word was not found)
+   */
+  public void colorizeCaptionWords(List<String> words, List<Integer> offsets, List<String> htmlHexColors) {
+    CaptionText currentCaptionText = captionTexts.get(currentCaption);
+    List<ColorTag> tags = new ArrayList<>(2 * words.size());
+    for (int i = 0; i < words.size(); i++) {
+      String word = words.get(i);
+      int offset = offsets.get(i);
+      if (offset < 0) {
+        // Words not found in the text are not highlighted(AnnotationService logs them)
+        continue;
+      }
+      if (word.isEmpty() || offset + word.length() > currentCaptionText.getText().length()) {
+        LOGGER.debug("Couldn't colorize word {} because it wasn't found in {}", word, currentCaptionText.getText());
+        continue;
+      }
+      // Tags go right before the first char of the word and right after its last char,
+      // even if the word spreads over multiple lines
+      int start = currentCaptionText.getRawOffset(offset);
+      int end = currentCaptionText.getRawOffset(offset + word.length() - 1) + 1;
+      tags.add(new ColorTag(start, i, "{\\c&" + htmlColorToAss(htmlHexColors.get(i)) + "&}"));
+      tags.add(new ColorTag(end, -i - 1, "{\\r}"));
+    }
+    if (tags.isEmpty()) {
       return;
     }
 
-    String startStyle = "{\\c&" + htmlColorToAss(htmlHexColor)  + "&}";
-    content.insert(matcher.start(), startStyle);
-    String endStyle = "{\\r}";
-    content.insert(matcher.end() + startStyle.length(), endStyle);
-
-    currentCaption.getValue().content = content.toString();
+    // All the tags are inserted in a single pass, at the same offset the end tags go first
+    String content = captions.get(currentCaption).getContent();
+    tags.sort(Comparator.comparingInt((ColorTag tag) -> tag.offset).thenComparingInt(tag -> tag.rank));
+    StringBuilder colorized = new StringBuilder(content.length() + 16 * tags.size());
+    int copied = 0;
+    for (ColorTag tag : tags) {
+      colorized.append(content, copied, tag.offset).append(tag.text);
+      copied = tag.offset;
+    }
+    colorized.append(content, copied, content.length());
+    captions.get(currentCaption).setContent(colorized.toString());
   }
 
   /**
-   * Add a short "by Jijimaku" message in the subtitle caption at the start of the video.
+   * An ASS color tag to insert in a caption.
    */
-  private void addJijimakuMark() {
-    Integer firstCaptionTimeMs = timedText.captions.entrySet().iterator().next().getKey();
-    if (firstCaptionTimeMs == 0) {
-      // Rare case, give up
-      return;
-    }
-
-    // Caption is read from recource file
-    TimedTextFileFormat ttff = new FormatASS();
-    try {
-      TimedTextObject tto = ttff.parseFile("", getClass().getClassLoader().getResourceAsStream("JijimakuMark.ass"));
-      Caption jijimakuMark = tto.captions.values().iterator().next();
-      jijimakuMark.content = "★ Definitions by {\\c&AAAAFF&}{\\b1}JIJIMAKU{\\r} using {\\c&FFAAAA&}Jim's Breen Japanese dictionary{\\r}";
-      annotationCaptions.put(0, jijimakuMark);
-    } catch (IOException exc) {
-      LOGGER.error("Cannot read JijimakuMark.ass.", exc);
-    } catch (FatalParsingException exc) {
-      LOGGER.error("Cannot parse JijimakuMark.ass.", exc);
+  private static class ColorTag {
+    private final int offset;
+    private final int rank;
+    private final String text;
+
+    /**
+     * Constructor.
+     * @param offset offset in the caption content where the tag is inserted
+     * @param rank order of the tags inserted at the same offset
+     */
+    ColorTag(int offset, int rank, String text) {
+      this.offset = offset;
+      this.rank = rank;
+      this.text = text;
     }
   }
 
@@ -178,24 +174,30 @@ public class SubtitleFile {
     if (annotations.isEmpty()) {
       return;
     }
-    // When adding a new caption to the subtitle we must find a key(int time) not yet used
-    Integer time = currentCaption.getKey() + 1;
-    while (timedText.captions.containsKey(time) || annotationCaptions.containsKey(time)) {
-      time++;
-    }
-    Caption annotation = new Caption();
-    annotation.content = String.join("\\N", annotations);
-    annotation.start = currentCaption.getValue().start;
-    annotation.end = currentCaption.getValue().end;
-    annotation.style = styles.get(SubStyle.Definition.toString());
-    annotationCaptions.put(time, annotation);
+    SubtitleCaption caption = captions.get(currentCaption);
+    annotationCaptions[currentCaption] = new SubtitleCaption(caption.getStart(), caption.getEnd(),
+        SubStyle.Definition.toString(), String.join("\\N", annotations));
     nbCaptionAnnotated++;
   }
 
-  public String[] toAssFormat() {
-    // Before exporting we add all the annotations to the file captions
-    timedText.captions.putAll(annotationCaptions);
-    return timedText.toASS();
+  /**
+   * Write the subtitle in the ASS format(UTF-8), the jijimaku mark first then each caption followed by its annotation.
+   * The mark is left out when a caption starts at 0, it would cover it.
+   * The output is streamed to the channel, use Channels.newChannel to write to an OutputStream.
+   */
+  public void writeAss(WritableByteChannel out) throws IOException {
+    SubtitleWriter writer = new SubtitleWriter(out);
+    writer.writeHeader(title, author, JIJIMAKU_SIGNATURE, template.getStyles());
+    if (template.getJijimakuMark() != null && captions.stream().noneMatch(c -> c.getStart() == 0)) {
+      writer.writeCaption(template.getJijimakuMark());
+    }
+    for (int i = 0; i < captions.size(); i++) {
+      writer.writeCaption(captions.get(i));
+      if (annotationCaptions[i] != null) {
+        writer.writeCaption(annotationCaptions[i]);
+      }
+    }
+    writer.writeEnd();
   }
 
   public int getNbCaptionAnnotated() {
@@ -0,0 +1,210 @@
+package jijimaku.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jijimaku.errors.SubtitleParsingException;
+
+
+/**
+ * Streaming reader of ASS and SRT subtitle files.
+ * The file is read line by line and only what we write back is kept: the captions in file order,
+ * and for ASS files the title and author of the script.
+ * Invalid lines are skipped and reported as warnings, a file without any caption cannot be read.
+ */
+class SubtitleReader {
+  private static final String BOM = "\uFEFF";
+  private static final String SRT_TIMES_SEPARATOR = "-->";
+  // Events format when an ASS file has no Format line, see https://www.matroska.org/technical/specs/subtitles/ssa.html
+  private static final List<String> DEFAULT_EVENTS_FORMAT = Arrays.asList(
+      "Layer", "Start", "End", "Style", "Name", "MarginL", "MarginR", "MarginV", "Effect", "Text"
+  );
+
+  private final List<SubtitleCaption> captions = new ArrayList<>();
+  private final List<String> warnings = new ArrayList<>();
+  private String title;
+  private String author;
+
+  private SubtitleReader() {
+  }
+
+  List<SubtitleCaption> getCaptions() {
+    return captions;
+  }
+
+  /**
+   * Lines that were skipped because they could not be read.
+   */
+  List<String> getWarnings() {
+    return warnings;
+  }
+
+  /**
+   * Title of the script, null if the file has none.
+   */
+  String getTitle() {
+    return title;
+  }
+
+  /**
+   * Author of the script, null if the file has none.
+   */
+  String getAuthor() {
+    return author;
+  }
+
+  /**
+   * Read the captions of an ASS(or SSA) file from its Dialogue lines.
+   */
+  static SubtitleReader readAss(BufferedReader reader) throws IOException, SubtitleParsingException {
+    SubtitleReader subtitle = new SubtitleReader();
+    String section = "";
+    EventsFormat format = new EventsFormat(DEFAULT_EVENTS_FORMAT);
+    for (String line = readFirstLine(reader); line != null; line = reader.readLine()) {
+      line = line.trim();
+      if (line.startsWith("[")) {
+        section = line;
+      } else if (section.equalsIgnoreCase("[Script Info]")) {
+        if (line.startsWith("Title:")) {
+          subtitle.title = valueOf(line);
+        } else if (line.startsWith("Original Script:")) {
+          subtitle.author = valueOf(line);
+        }
+      } else if (section.equalsIgnoreCase("[Events]")) {
+        if (line.startsWith("Format:")) {
+          format = new EventsFormat(Arrays.asList(valueOf(line).split("\\s*,\\s*")));
+        } else if (line.startsWith("Dialogue:")) {
+          subtitle.addAssCaption(format, line);
+        }
+      }
+    }
+    return subtitle.checkCaptions();
+  }
+
+  /**
+   * Position of the fields we need in the Dialogue lines of an ASS file.
+   */
+  private static class EventsFormat {
+    private final int fieldsCount;
+    private final int startField;
+    private final int endField;
+    private final int styleField;
+
+    EventsFormat(List<String> fields) {
+      // The text is always the last field, it can contain commas
+      fieldsCount = fields.size();
+      startField = fields.indexOf("Start");
+      endField = fields.indexOf("End");
+      styleField = fields.indexOf("Style");
+    }
+  }
+
+  private void addAssCaption(EventsFormat format, String line) {
+    String[] fields = valueOf(line).split(",", format.fieldsCount);
+    int start = fields.length == format.fieldsCount && format.startField >= 0 ? parseTime(fields[format.startField]) : -1;
+    int end = fields.length == format.fieldsCount && format.endField >= 0 ? parseTime(fields[format.endField]) : -1;
+    if (start < 0 || end < 0) {
+      warnings.add(line);
+      return;
+    }
+    String style = format.styleField >= 0 ? fields[format.styleField].trim() : null;
+    String content = fields[format.fieldsCount - 1]
+        .replace("\\N", SubtitleCaption.LINE_BREAK)
+        .replace("\\n", SubtitleCaption.LINE_BREAK);
+    captions.add(new SubtitleCaption(start, end, style, content));
+  }
+
+  /**
+   * Read the captions of a SRT file: blocks of a number line, a timing line and text lines, separated by empty lines.
+   */
+  static SubtitleReader readSrt(BufferedReader reader) throws IOException, SubtitleParsingException {
+    SubtitleReader subtitle = new SubtitleReader();
+    String timing = null;
+    StringBuilder content = new StringBuilder();
+    for (String line = readFirstLine(reader); line != null; line = reader.readLine()) {
+      line = line.trim();
+      if (timing == null) {
+        // The number line is not needed, captions are kept in file order
+        if (line.contains(SRT_TIMES_SEPARATOR)) {
+          timing = line;
+        }
+      } else if (!line.isEmpty()) {
+        if (content.length() > 0) {
+          content.append(SubtitleCaption.LINE_BREAK);
+        }
+        content.append(line);
+      } else {
+        subtitle.addSrtCaption(timing, content.toString());
+        timing = null;
+        content.setLength(0);
+      }
+    }
+    if (timing != null) {
+      subtitle.addSrtCaption(timing, content.toString());
+    }
+    return subtitle.checkCaptions();
+  }
+
+  private void addSrtCaption(String timing, String content) {
+    int separator = timing.indexOf(SRT_TIMES_SEPARATOR);
+    String endTiming = timing.substring(separator + SRT_TIMES_SEPARATOR.length()).trim();
+    // The end time can be followed by display coordinates
+    int endTimingLength = endTiming.indexOf(' ');
+    int start = parseTime(timing.substring(0, separator));
+    int end = parseTime(endTimingLength >= 0 ? endTiming.substring(0, endTimingLength) : endTiming);
+    if (start < 0 || end < 0) {
+      warnings.add(timing);
+      return;
+    }
+    captions.add(new SubtitleCaption(start, end, null, content));
+  }
+
+  private SubtitleReader checkCaptions() throws SubtitleParsingException {
+    if (captions.isEmpty()) {
+      throw new SubtitleParsingException("No caption found");
+    }
+    return this;
+  }
+
+  /**
+   * Read the first line of a file without its byte order mark.
+   */
+  private static String readFirstLine(BufferedReader reader) throws IOException {
+    String line = reader.readLine();
+    return line != null && line.startsWith(BOM) ? line.substring(BOM.length()) : line;
+  }
+
+  /**
+   * Return the value of a "Key: value" line.
+   */
+  private static String valueOf(String line) {
+    return line.substring(line.indexOf(':') + 1).trim();
+  }
+
+  /**
+   * Parse a time in ms, in the ASS(h:mm:ss.cs) or SRT(hh:mm:ss,mmm) format.
+   * @return the time, or -1 if it is invalid.
+   */
+  private static int parseTime(String time) {
+    time = time.trim();
+    int fractionStart = Math.max(time.lastIndexOf('.'), time.lastIndexOf(','));
+    String[] hms = (fractionStart >= 0 ? time.substring(0, fractionStart) : time).split(":");
+    if (hms.length != 3) {
+      return -1;
+    }
+    try {
+      int ms = ((Integer.parseInt(hms[0]) * 60 + Integer.parseInt(hms[1])) * 60 + Integer.parseInt(hms[2])) * 1000;
+      if (fractionStart >= 0) {
+        // Centiseconds in ASS, milliseconds in SRT
+        String fraction = (time.substring(fractionStart + 1) + "00").substring(0, 3);
+        ms += Integer.parseInt(fraction);
+      }
+      return ms >= 0 ? ms : -1;
+    } catch (NumberFormatException exc) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package jijimaku.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import jijimaku.errors.SubtitleParsingException;
+import jijimaku.errors.UnexpectedError;
+
+
+/**
+ * What is the same in all the annotated subtitle files: the styles and the Jijimaku mark caption.
+ * It is built once per run and shared by all the SubtitleFile, it is never modified.
+ */
+public class SubtitleTemplate {
+  private static final Logger LOGGER;
+
+  static {
+    System.setProperty("logDir", FileManager.getLogsDirectory());
+    LOGGER = LogManager.getLogger();
+  }
+
+  // Format and Style lines of the styles section
+  private final List<String> styles;
+  // Null if the mark could not be read
+  private final SubtitleCaption jijimakuMark;
+
+  /**
+   * Constructor.
+   * @param stylesStr String representing the styles in ASS format. See AppConfig.DEFAULT_ASS_STYLES for an example.
+   */
+  public SubtitleTemplate(String stylesStr) {
+    styles = Collections.unmodifiableList(parseStyles(stylesStr));
+    jijimakuMark = readJijimakuMark();
+  }
+
+  /**
+   * Return the Format and Style lines of the styles.
+   */
+  private static List<String> parseStyles(String stylesStr) {
+    List<String> styleLines = new ArrayList<>();
+    boolean hasFormat = false;
+    for (String line : stylesStr.split("\r?\n")) {
+      line = line.trim();
+      if (line.startsWith("Format:")) {
+        hasFormat = true;
+        styleLines.add(line);
+      } else if (line.startsWith("Style:")) {
+        styleLines.add(line);
+      }
+    }
+    if (!hasFormat || styleLines.size() < 2) {
+      LOGGER.error("The subtitle styles seem invalid");
+      LOGGER.debug("Could not find the Format and Style lines in styles {}", stylesStr);
+      throw new UnexpectedError();
+    }
+    return styleLines;
+  }
+
+  /**
+   * Read the short "by Jijimaku" message displayed at the start of the video.
+   */
+  private static SubtitleCaption readJijimakuMark() {
+    // Caption is read from recource file
+    try (InputStream markStream = SubtitleTemplate.class.getClassLoader().getResourceAsStream("JijimakuMark.ass");
+         BufferedReader reader = new BufferedReader(new InputStreamReader(markStream, StandardCharsets.UTF_8))) {
+      SubtitleCaption jijimakuMark = SubtitleReader.readAss(reader).getCaptions().get(0);
+      jijimakuMark.setContent("★ Definitions by {\\c&AAAAFF&}{\\b1}JIJIMAKU{\\r} using {\\c&FFAAAA&}Jim's Breen Japanese dictionary{\\r}");
+      return jijimakuMark;
+    } catch (IOException exc) {
+      LOGGER.error("Cannot read JijimakuMark.ass.", exc);
+    } catch (SubtitleParsingException exc) {
+      LOGGER.error("Cannot parse JijimakuMark.ass.", exc);
+    }
+    return null;
+  }
+
+  List<String> getStyles() {
+    return styles;
+  }
+
+  SubtitleCaption getJijimakuMark() {
+    return jijimakuMark;
+  }
+}
@@ -0,0 +1,152 @@
+package jijimaku.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+
+/**
+ * Streaming writer of ASS subtitle files in UTF-8: each line is encoded as soon as it is built
+ * into a byte buffer that is written to the channel when full, so the output is never held in memory.
+ * The line builder, the encoder and the byte buffer are reused for all the files written by a thread.
+ * Sections must be written in order: header, then captions.
+ */
+class SubtitleWriter {
+  private static final String EVENTS_FORMAT = "Format: Layer, Start, End, Style, Name, MarginL, MarginR, MarginV, Effect, Text";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Encoding state of a thread.
+   */
+  private static class Encoding {
+    private final StringBuilder line = new StringBuilder();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  }
+
+  private static final ThreadLocal<Encoding> ENCODINGS = ThreadLocal.withInitial(Encoding::new);
+
+  private final WritableByteChannel out;
+  private final String lineSeparator = System.lineSeparator();
+  private final StringBuilder line;
+  private final CharsetEncoder encoder;
+  private final ByteBuffer buffer;
+
+  SubtitleWriter(WritableByteChannel out) {
+    this.out = out;
+    Encoding encoding = ENCODINGS.get();
+    line = encoding.line;
+    encoder = encoding.encoder;
+    buffer = encoding.buffer;
+    encoder.reset();
+    buffer.clear();
+  }
+
+  /**
+   * Write the script info and styles sections, and start the events section.
+   * @param styles the Format line and the Style lines of the styles section
+   */
+  void writeHeader(String title, String author, String description, List<String> styles) throws IOException {
+    writeLine("[Script Info]");
+    writeLine("Title: " + title);
+    writeLine("Original Script: " + (author != null && !author.isEmpty() ? author : "Unknown"));
+    writeLine("; " + description);
+    writeLine("Script Type: V4.00+");
+    writeLine("Collisions: Normal");
+    writeLine("Timer: 100,0000");
+    writeLine("WrapStyle: 1");
+    writeLine("");
+    writeLine("[V4+ Styles]");
+    for (String style : styles) {
+      writeLine(style);
+    }
+    writeLine("");
+    writeLine("[Events]");
+    writeLine(EVENTS_FORMAT);
+  }
+
+  /**
+   * Write a caption as a Dialogue line.
+   * Line breaks become \N and HTML tags(from SRT files) are dropped.
+   */
+  void writeCaption(SubtitleCaption caption) throws IOException {
+    line.setLength(0);
+    line.append("Dialogue: 0,");
+    appendTime(caption.getStart());
+    line.append(',');
+    appendTime(caption.getEnd());
+    line.append(',').append(caption.getStyle() != null ? caption.getStyle() : "Default").append(",,0000,0000,0000,,");
+    String content = caption.getContent();
+    int idx = 0;
+    while (idx < content.length()) {
+      char c = content.charAt(idx);
+      int tagEnd = c == '<' ? content.indexOf('>', idx) : -1;
+      if (tagEnd < 0) {
+        line.append(c);
+        idx++;
+        continue;
+      }
+      if (content.startsWith(SubtitleCaption.LINE_BREAK, idx)) {
+        line.append("\\N");
+      }
+      idx = tagEnd + 1;
+    }
+    writeLine(line);
+  }
+
+  /**
+   * End the file: write what is left in the buffer.
+   */
+  void writeEnd() throws IOException {
+    writeLine("");
+    encode(CharBuffer.wrap(""), true);
+    while (encoder.flush(buffer) == CoderResult.OVERFLOW) {
+      writeBuffer();
+    }
+    writeBuffer();
+  }
+
+  /**
+   * Append a time in ms in the ASS format h:mm:ss.cs.
+   */
+  private void appendTime(int ms) {
+    int cs = ms / 10;
+    line.append(cs / 360000).append(':');
+    appendTwoDigits(cs / 6000 % 60);
+    line.append(':');
+    appendTwoDigits(cs / 100 % 60);
+    line.append('.');
+    appendTwoDigits(cs % 100);
+  }
+
+  private void appendTwoDigits(int value) {
+    line.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+  }
+
+  private void writeLine(CharSequence text) throws IOException {
+    encode(CharBuffer.wrap(text), false);
+    encode(CharBuffer.wrap(lineSeparator), false);
+  }
+
+  private void encode(CharBuffer chars, boolean endOfInput) throws IOException {
+    while (encoder.encode(chars, buffer, endOfInput) == CoderResult.OVERFLOW) {
+      writeBuffer();
+    }
+  }
+
+  private void writeBuffer() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+  }
+}
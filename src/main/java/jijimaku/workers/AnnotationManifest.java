@@ -0,0 +1,306 @@
+package jijimaku.workers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import jijimaku.errors.UnexpectedError;
+import jijimaku.utils.FileManager;
+
+
+/**
+ * Persistent record of the subtitle files annotated by previous runs, so that a new run skips the files
+ * that did not change since, without reading or decoding them.
+ * A file is annotated again when its contents, the configuration or the dictionary changed, or when its
+ * annotated file was modified or deleted. The annotated files themselves are recognized and skipped too.
+ *
+ * <p>File layout (all integers big-endian):
+ * - header: magic, format version
+ * - records appended one after the other: record length, input file path, length, last modified time and MD5
+ *   of its contents, configuration hash, dictionary version, then the annotated file path(empty if nothing
+ *   was annotated), length and last modified time
+ * Records are appended as soon as a file is written, so an interrupted run resumes where it stopped.
+ * The last record of an input file replaces the previous ones, a record truncated by an interrupted run is
+ * discarded when the file is opened.
+ */
+class AnnotationManifest {
+  private static final Logger LOGGER;
+
+  static {
+    System.setProperty("logDir", FileManager.getLogsDirectory());
+    LOGGER = LogManager.getLogger();
+  }
+
+  private static final int MAGIC = 0x4A4D4E46;  // "JMNF"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  // The file is rewritten without the replaced records when they are more than the last ones
+  private static final int MIN_REPLACED_RECORDS_TO_COMPACT = 1000;
+
+  private final long configurationHash;
+  private final long dictionaryVersion;
+  // Last record of each input file and of each annotated file, by absolute path
+  private final Map<String, Record> inputs = new ConcurrentHashMap<>();
+  private final Map<String, Record> outputs = new ConcurrentHashMap<>();
+  private final DataOutputStream out;
+  // Records replaced by a later record of the same input file, guarded by this once the manifest is open
+  private int replacedRecords = 0;
+
+  /**
+   * The annotation of an input file.
+   */
+  private static class Record {
+    private final String inputPath;
+    private final long inputLength;
+    private final long inputModified;
+    private final byte[] inputHash;
+    private final long configurationHash;
+    private final long dictionaryVersion;
+    private final String outputPath;
+    private final long outputLength;
+    private final long outputModified;
+
+    Record(String inputPath, long inputLength, long inputModified, byte[] inputHash,
+           long configurationHash, long dictionaryVersion, String outputPath, long outputLength, long outputModified) {
+      this.inputPath = inputPath;
+      this.inputLength = inputLength;
+      this.inputModified = inputModified;
+      this.inputHash = inputHash;
+      this.configurationHash = configurationHash;
+      this.dictionaryVersion = dictionaryVersion;
+      this.outputPath = outputPath;
+      this.outputLength = outputLength;
+      this.outputModified = outputModified;
+    }
+
+    boolean hasOutput() {
+      return !outputPath.isEmpty();
+    }
+
+    /**
+     * Check that the annotated file was not modified or deleted since it was written.
+     */
+    boolean isOutputUnchanged() {
+      if (!hasOutput()) {
+        return true;
+      }
+      File output = new File(outputPath);
+      return output.length() == outputLength && output.lastModified() == outputModified;
+    }
+  }
+
+  /**
+   * MD5 hash of some bytes.
+   */
+  static byte[] hash(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(bytes);
+    } catch (NoSuchAlgorithmException exc) {
+      LOGGER.error("MD5 is not available");
+      throw new UnexpectedError();
+    }
+  }
+
+  private static long hash(String text) {
+    return ByteBuffer.wrap(hash(text.getBytes(StandardCharsets.UTF_8))).getLong();
+  }
+
+  /**
+   * Open a manifest file, or create it if it is missing.
+   * @param configuration description of everything in the configuration that changes the annotated files
+   * @param dictionaryVersion description of the dictionary version
+   */
+  AnnotationManifest(File manifestFile, String configuration, String dictionaryVersion) throws IOException {
+    this.configurationHash = hash(configuration);
+    this.dictionaryVersion = hash(dictionaryVersion);
+    long validLength = manifestFile.isFile() ? load(manifestFile) : 0;
+    if (validLength == 0 || replacedRecords >= Math.max(inputs.size(), MIN_REPLACED_RECORDS_TO_COMPACT)) {
+      // Write a new file with the last records only
+      File newManifestFile = new File(manifestFile.getPath() + ".new");
+      try (DataOutputStream newOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newManifestFile)))) {
+        newOut.writeInt(MAGIC);
+        newOut.writeInt(FORMAT_VERSION);
+        for (Record record : inputs.values()) {
+          writeRecord(newOut, record);
+        }
+      }
+      Files.move(newManifestFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } else if (validLength < manifestFile.length()) {
+      try (RandomAccessFile raf = new RandomAccessFile(manifestFile, "rw")) {
+        raf.setLength(validLength);
+      }
+    }
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(manifestFile, true)));
+  }
+
+  /**
+   * Read the records of a manifest file.
+   * @return the length of the valid part of the file, 0 if the file cannot be used.
+   */
+  private long load(File manifestFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)))) {
+      if (manifestFile.length() < HEADER_SIZE
+          || in.readInt() != MAGIC
+          || in.readInt() != FORMAT_VERSION) {
+        LOGGER.debug("Manifest {} has an unknown format, create a new one.", manifestFile.getName());
+        return 0;
+      }
+      long validLength = HEADER_SIZE;
+      try {
+        while (validLength < manifestFile.length()) {
+          int recordLength = in.readInt();
+          if (recordLength < 0 || validLength + 4 + recordLength > manifestFile.length()) {
+            throw new EOFException();
+          }
+          byte[] record = new byte[recordLength];
+          in.readFully(record);
+          put(readRecord(new DataInputStream(new ByteArrayInputStream(record))));
+          validLength += 4 + record.length;
+        }
+      } catch (EOFException exc) {
+        LOGGER.debug("Manifest {} ends with an incomplete record, drop it.", manifestFile.getName());
+      }
+      LOGGER.debug("Read {} annotated files from {}", inputs.size(), manifestFile.getName());
+      return validLength;
+    }
+  }
+
+  private static Record readRecord(DataInputStream in) throws IOException {
+    String inputPath = in.readUTF();
+    long inputLength = in.readLong();
+    long inputModified = in.readLong();
+    byte[] inputHash = new byte[16];
+    in.readFully(inputHash);
+    return new Record(inputPath, inputLength, inputModified, inputHash, in.readLong(), in.readLong(),
+        in.readUTF(), in.readLong(), in.readLong());
+  }
+
+  private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+    // Records are written in one piece, so that a failure never leaves a partial record
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream recordOut = new DataOutputStream(bytes);
+    recordOut.writeUTF(record.inputPath);
+    recordOut.writeLong(record.inputLength);
+    recordOut.writeLong(record.inputModified);
+    recordOut.write(record.inputHash);
+    recordOut.writeLong(record.configurationHash);
+    recordOut.writeLong(record.dictionaryVersion);
+    recordOut.writeUTF(record.outputPath);
+    recordOut.writeLong(record.outputLength);
+    recordOut.writeLong(record.outputModified);
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+  }
+
+  private void put(Record record) {
+    if (inputs.put(record.inputPath, record) != null) {
+      replacedRecords++;
+    }
+    if (record.hasOutput()) {
+      outputs.put(record.outputPath, record);
+    }
+  }
+
+  /**
+   * Check from its length and last modified time that a file is an annotated file written by a previous run.
+   */
+  boolean isAnnotatedFile(File file) {
+    Record record = outputs.get(file.getAbsolutePath());
+    return record != null && record.isOutputUnchanged();
+  }
+
+  /**
+   * Check from its length and last modified time that a file did not change since it was annotated,
+   * with the same configuration and dictionary.
+   */
+  boolean isUnchanged(File file) {
+    Record record = inputs.get(file.getAbsolutePath());
+    return isUpToDate(record)
+        && record.inputLength == file.length()
+        && record.inputModified == file.lastModified();
+  }
+
+  /**
+   * Check from the hash of its contents that a file did not change since it was annotated,
+   * with the same configuration and dictionary. This catches files that were only touched or copied.
+   */
+  boolean isUnchanged(File file, byte[] contentsHash) {
+    Record record = inputs.get(file.getAbsolutePath());
+    if (!isUpToDate(record) || !Arrays.equals(record.inputHash, contentsHash)) {
+      return false;
+    }
+    // Record the new last modified time, so that the file is not read next time
+    add(record, file);
+    return true;
+  }
+
+  private boolean isUpToDate(Record record) {
+    return record != null
+        && record.configurationHash == configurationHash
+        && record.dictionaryVersion == dictionaryVersion
+        && record.isOutputUnchanged();
+  }
+
+  /**
+   * Record the annotation of a file.
+   * @param contentsHash hash of the file contents, see hash(byte[])
+   * @param output the annotated file, or null if nothing was annotated in the file
+   */
+  void add(File file, byte[] contentsHash, File output) {
+    add(new Record(file.getAbsolutePath(), file.length(), file.lastModified(), contentsHash,
+        configurationHash, dictionaryVersion,
+        output != null ? output.getAbsolutePath() : "",
+        output != null ? output.length() : 0,
+        output != null ? output.lastModified() : 0));
+  }
+
+  private void add(Record record, File file) {
+    add(new Record(record.inputPath, file.length(), file.lastModified(), record.inputHash,
+        record.configurationHash, record.dictionaryVersion, record.outputPath, record.outputLength, record.outputModified));
+  }
+
+  private void add(Record record) {
+    try {
+      // Files are annotated concurrently: the maps and the replaced records count are updated with the file,
+      // so that the last record of an input in the maps is also the last one written
+      synchronized (this) {
+        put(record);
+        writeRecord(out, record);
+        out.flush();
+      }
+    } catch (IOException exc) {
+      LOGGER.warn("Could not write to the manifest, see logs.");
+      LOGGER.debug("Got exception", exc);
+    }
+  }
+
+  synchronized void close() {
+    try {
+      out.close();
+    } catch (IOException exc) {
+      LOGGER.warn("Could not write to the manifest, see logs.");
+      LOGGER.debug("Got exception", exc);
+    }
+  }
+}
@@ -4,20 +4,31 @@ import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import jijimaku.AppConfig;
+import jijimaku.errors.SubtitleParsingException;
 import jijimaku.errors.UnexpectedError;
 import jijimaku.models.ServicesParam;
 import jijimaku.services.AnnotationService;
+import jijimaku.services.jijidictionary.JijiDictionary;
 import jijimaku.utils.SubtitleFile;
 import jijimaku.utils.FileManager;
-import subtitleFile.FatalParsingException;
 
 
 /**
@@ -27,6 +38,16 @@ public class WorkerAnnotate extends SwingWorker<Void, Object> {
   private static final Logger LOGGER;
 
   private static final String ASS_FILE_BACKUP_SUFFIX = "._original";
+  private static final String MANIFEST_FILE = "jijimaku.manifest";
+  // Change this version whenever the annotated files change for the same input, to annotate all the files again
+  private static final int ANNOTATION_VERSION = 1;
+
+  // Number of threads reading or writing files
+  private static final int IO_THREADS = 2;
+  // Number of files annotated at the same time. The captions of a file are already annotated on all
+  // the annotation threads(see AnnotationService), the second file only keeps them busy while the first one
+  // is read into captions or gets its annotations.
+  private static final int ANNOTATE_FILE_THREADS = 2;
 
   static {
     System.setProperty("logDir", FileManager.getLogsDirectory());
@@ -35,7 +56,12 @@ public class WorkerAnnotate extends SwingWorker<Void, Object> {
 
   private final File searchDirectory;
   private final String[] searchExtensions;
+  private final AppConfig config;
   private final AnnotationService annotationService;
+  private final JijiDictionary dictionary;
+  // Files annotated by previous runs, null if it cannot be opened
+  private AnnotationManifest manifest;
+  private final AtomicInteger nbUnchanged = new AtomicInteger();
 
   /**
    * Constructor.
@@ -48,28 +74,82 @@ public class WorkerAnnotate extends SwingWorker<Void, Object> {
     }
     this.searchDirectory = searchDirectory;
     this.searchExtensions = searchExtensions;
+    this.config = services.getConfig();
     this.annotationService = new AnnotationService(services);
+    this.dictionary = services.getDictionary();
   }
 
   /**
-   * Process one file.
-   * @return if the file was annotated, false otherwise.
+   * A subtitle file going through the read => annotate => write stages.
    */
-  private boolean processFile(File fileEntry) throws IOException, FatalParsingException {
-    String fileContents = FileManager.fileAnyEncodingToString(fileEntry);
-    if (fileEntry.isHidden() || SubtitleFile.isJijimakuFile(fileContents)) {
-      LOGGER.debug("{} is one of our annotated subtitle, skip it.", fileEntry.getName());
-      return false;
+  private static class SubtitleJob {
+    private final File fileEntry;
+    private byte[] contentsHash;
+    private String fileContents;
+    private SubtitleFile annotated;
+
+    SubtitleJob(File fileEntry) {
+      this.fileEntry = fileEntry;
     }
-    String fileName = fileEntry.getName();
-    String fileBaseName = FilenameUtils.getBaseName(fileName);
+  }
+
+  /**
+   * Read stage: read and decode one file.
+   * @return the job, or null if the file should not be annotated.
+   */
+  private SubtitleJob readFile(SubtitleJob job) throws IOException {
+    if (manifest != null && manifest.isAnnotatedFile(job.fileEntry)) {
+      LOGGER.debug("{} is one of our annotated subtitle, skip it.", job.fileEntry.getName());
+      return null;
+    }
+    if (manifest != null && manifest.isUnchanged(job.fileEntry)) {
+      return skipUnchanged(job);
+    }
+    byte[] contents = Files.readAllBytes(job.fileEntry.toPath());
+    job.contentsHash = AnnotationManifest.hash(contents);
+    if (manifest != null && manifest.isUnchanged(job.fileEntry, job.contentsHash)) {
+      return skipUnchanged(job);
+    }
+    job.fileContents = FileManager.bytesAnyEncodingToString(contents, job.fileEntry);
+    if (job.fileEntry.isHidden() || SubtitleFile.isJijimakuFile(job.fileContents)) {
+      LOGGER.debug("{} is one of our annotated subtitle, skip it.", job.fileEntry.getName());
+      return null;
+    }
+    return job;
+  }
+
+  private SubtitleJob skipUnchanged(SubtitleJob job) {
+    LOGGER.debug("{} did not change since it was annotated, skip it.", job.fileEntry.getName());
+    nbUnchanged.incrementAndGet();
+    return null;
+  }
 
+  /**
+   * Annotate stage: parse and annotate one file.
+   * @return the job, or null if nothing was annotated.
+   */
+  private SubtitleJob annotateFile(SubtitleJob job) throws IOException, SubtitleParsingException {
+    String fileName = job.fileEntry.getName();
     LOGGER.info("Processing " + fileName + "...");
-    String[] annotated = annotationService.annotateSubtitleFile(fileName, fileContents);
-    if (annotated == null) {
-      LOGGER.info("Nothing to annotate was found in this file(wrong language?)");
-      return false;
+    job.annotated = annotationService.annotateSubtitleFile(fileName, job.fileContents);
+    job.fileContents = null;
+    if (job.annotated == null) {
+      LOGGER.info("Nothing to annotate was found in {}(wrong language?)", fileName);
+      if (manifest != null) {
+        manifest.add(job.fileEntry, job.contentsHash, null);
+      }
+      return null;
     }
+    return job;
+  }
+
+  /**
+   * Write stage: write the annotated file.
+   */
+  private void writeFile(SubtitleJob job) throws IOException {
+    String fileName = job.fileEntry.getName();
+    String fileBaseName = FilenameUtils.getBaseName(fileName);
+    File inputFile = job.fileEntry;
 
     // For ASS files, make a copy because the original file will be overwritten
     if (FilenameUtils.getExtension(fileName).equals("ass")) {
@@ -77,15 +157,81 @@ public class WorkerAnnotate extends SwingWorker<Void, Object> {
         // This is already our copy, just remove suffix when writing out the result
         fileBaseName = fileBaseName.substring(0, fileBaseName.lastIndexOf(ASS_FILE_BACKUP_SUFFIX));
       } else {
-        Files.copy(Paths.get(fileEntry.toURI()), Paths.get(fileEntry.getParent() + "/" + fileBaseName + ASS_FILE_BACKUP_SUFFIX + ".ass"));
+        inputFile = new File(job.fileEntry.getParent() + "/" + fileBaseName + ASS_FILE_BACKUP_SUFFIX + ".ass");
+        Files.copy(Paths.get(job.fileEntry.toURI()), Paths.get(inputFile.toURI()));
       }
     }
 
-    String outFile = fileEntry.getParent() + "/" + fileBaseName + ".ass";
-    FileManager.writeStringArrayToFile(outFile, annotated);
-    return true;
+    File outFile = new File(job.fileEntry.getParent() + "/" + fileBaseName + ".ass");
+    try (FileChannel out = FileChannel.open(Paths.get(outFile.toURI()),
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      job.annotated.writeAss(out);
+    }
+    // The original is now the input of the annotated file(the copy for ASS files)
+    if (manifest != null) {
+      manifest.add(inputFile, job.contentsHash, outFile);
+    }
+  }
+
+  /**
+   * Open the manifest in the app directory.
+   * Annotated files depend on the configuration, the dictionary and the proper nouns file.
+   * @return the manifest, or null if it cannot be opened.
+   */
+  private AnnotationManifest openManifest() {
+    String appDirectory = FileManager.getAppDirectory();
+    File manifestFile = new File(appDirectory + "/" + MANIFEST_FILE);
+    String configuration = ANNOTATION_VERSION + "\n" + config.getAnnotationDescription();
+    if (config.getProperNounsFile() != null) {
+      configuration += "\n" + getFileVersion(new File(appDirectory + "/" + config.getProperNounsFile()));
+    }
+    String dictionaryVersion = getFileVersion(new File(appDirectory + "/" + config.getDictionary()));
+    try {
+      return new AnnotationManifest(manifestFile, configuration, dictionaryVersion);
+    } catch (IOException exc) {
+      LOGGER.warn("Could not open the manifest {}, all the files will be annotated.", manifestFile.getName());
+      LOGGER.debug("Got exception", exc);
+      return null;
+    }
+  }
+
+  /**
+   * A file version is its length and last modified time, like for the dictionary snapshot.
+   */
+  private static String getFileVersion(File file) {
+    return file.length() + ":" + file.lastModified();
+  }
+
+  /**
+   * Receive a pipeline stage method.
+   */
+  private interface Stage<T, R> {
+    R apply(T job) throws IOException, SubtitleParsingException;
+  }
+
+  /**
+   * Wrap a stage so that it runs only for jobs that were not dropped(null) by a previous stage.
+   */
+  private static <T, R> Function<T, R> stage(Stage<T, R> stage) {
+    return job -> {
+      if (job == null) {
+        return null;
+      }
+      try {
+        return stage.apply(job);
+      } catch (IOException | SubtitleParsingException exc) {
+        throw new CompletionException(exc);
+      }
+    };
   }
 
+  /**
+   * Files go through a pipeline of three stages: read/decode => annotate => write,
+   * each stage with its own pool so that disk I/O and annotation of different files overlap.
+   * The annotation threads are only used by AnnotationService to annotate the captions of a file,
+   * the annotate stage runs a couple of files at most so that there is a single level of parallelism.
+   * The number of files in the pipeline is bounded, which bounds the queues between stages.
+   */
   @Override
   public Void doInBackground() throws Exception {
     if (SwingUtilities.isEventDispatchThread()) {
@@ -93,28 +239,72 @@ public class WorkerAnnotate extends SwingWorker<Void, Object> {
     }
 
     LOGGER.info("------------------- Searching in {} -------------------", searchDirectory.getAbsolutePath());
-    Integer nbAnnotated = 0;
-    for (File fileEntry : FileUtils.listFiles(searchDirectory, searchExtensions, true)) {
-      try {
-        if (processFile(fileEntry)) {
-          nbAnnotated++;
+    manifest = openManifest();
+    int annotateThreads = Math.min(ANNOTATE_FILE_THREADS, config.getAnnotationThreads());
+    int maxFilesInPipeline = 2 * (IO_THREADS + annotateThreads + IO_THREADS);
+    ExecutorService readPool = Executors.newFixedThreadPool(IO_THREADS);
+    ExecutorService annotatePool = Executors.newFixedThreadPool(annotateThreads);
+    ExecutorService writePool = Executors.newFixedThreadPool(IO_THREADS);
+    Semaphore filesInPipeline = new Semaphore(maxFilesInPipeline);
+    AtomicInteger nbAnnotated = new AtomicInteger();
+    try {
+      for (File fileEntry : FileUtils.listFiles(searchDirectory, searchExtensions, true)) {
+        if (isCancelled()) {
+          LOGGER.debug("WorkerSubAnnotator was cancelled.");
+          break;
         }
-      } catch (Exception exc) {
-        LOGGER.error("Error while trying to annotate {}. See log for details. Skip file.", fileEntry.getName());
-        LOGGER.debug("Got exception", exc);
+        filesInPipeline.acquire();
+        CompletableFuture.completedFuture(new SubtitleJob(fileEntry))
+            .thenApplyAsync(stage(this::readFile), readPool)
+            .thenApplyAsync(stage(this::annotateFile), annotatePool)
+            .thenApplyAsync(stage(job -> {
+              writeFile(job);
+              return job;
+            }), writePool)
+            .whenComplete((job, exc) -> {
+              if (exc != null) {
+                LOGGER.error("Error while trying to annotate {}. See log for details. Skip file.", fileEntry.getName());
+                LOGGER.debug("Got exception", exc.getCause() != null ? exc.getCause() : exc);
+              } else if (job != null) {
+                nbAnnotated.incrementAndGet();
+              }
+              filesInPipeline.release();
+            });
       }
 
-      if (isCancelled()) {
-        LOGGER.debug("WorkerSubAnnotator was cancelled.");
-        return null;
+      // Wait for the files still in the pipeline
+      filesInPipeline.acquire(maxFilesInPipeline);
+    } finally {
+      readPool.shutdown();
+      annotatePool.shutdown();
+      writePool.shutdown();
+      annotationService.close();
+      if (manifest != null) {
+        manifest.close();
       }
     }
+    if (isCancelled()) {
+      return null;
+    }
 
-    if (nbAnnotated > 0) {
-      LOGGER.info("{} subtitle files were annotated.", nbAnnotated);
-    } else {
+    if (nbAnnotated.get() > 0) {
+      LOGGER.info("{} subtitle files were annotated.", nbAnnotated.get());
+    } else if (nbUnchanged.get() == 0) {
       LOGGER.info("No subtitle found in this directory.");
     }
+    if (nbUnchanged.get() > 0) {
+      LOGGER.info("{} files did not change since they were annotated and were skipped(delete {} to annotate them again).",
+          nbUnchanged.get(), MANIFEST_FILE);
+    }
+    if (annotationService.getCaptionCache() != null) {
+      LOGGER.info("Repeated captions cache: {}", annotationService.getCaptionCache().getStatistics());
+    }
+    if (annotationService.getDefinitionCache() != null) {
+      LOGGER.debug("Rendered definitions cache: {}", annotationService.getDefinitionCache().getStatistics());
+    }
+    if (dictionary.getEntryCache() != null) {
+      LOGGER.debug("Dictionary entries cache: {}", dictionary.getEntryCache().getStatistics());
+    }
     return null;
   }
 
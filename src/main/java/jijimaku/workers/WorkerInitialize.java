@@ -1,6 +1,7 @@
 package jijimaku.workers;
 
 import java.io.File;
+import java.io.IOException;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 
@@ -11,7 +12,10 @@ import jijimaku.errors.UnexpectedError;
 import jijimaku.models.ServicesParam;
 import jijimaku.AppConfig;
 import jijimaku.services.jijidictionary.JijiDictionary;
+import jijimaku.services.jijidictionary.JijiDictionarySnapshot;
+import jijimaku.services.langparser.DictionaryScanParser;
 import jijimaku.services.langparser.JapaneseParser;
+import jijimaku.services.langparser.LangParser;
 import jijimaku.utils.FileManager;
 
 
@@ -63,15 +67,48 @@ public class WorkerInitialize extends SwingWorker<ServicesParam, Object> {
       LOGGER.error("Could not find the dictionary file {} in directory {}", config.getDictionary(), appDirectory);
       throw new UnexpectedError();
     }
-    JijiDictionary dict = new JijiDictionary(dictionaryFile);
+    JijiDictionary dict = loadDictionary(dictionaryFile, config);
 
     // Initialize parser
     LOGGER.info("Instantiate parser...");
-    JapaneseParser langParser = new JapaneseParser(config);
+    LangParser langParser = config.getParserMode().equals(AppConfig.PARSER_MODE_LITE)
+        ? new DictionaryScanParser(dict)
+        : new JapaneseParser(config);
 
     LOGGER.info("Ready to work!");
 
     return new ServicesParam(config, dict, langParser);
   }
-}
 
+  /**
+   * Load the dictionary from its compiled snapshot, compiling the snapshot first if it is missing or outdated.
+   * The snapshot is either mapped or opened in paged mode depending on the dictionaryMode option.
+   * If the snapshot cannot be written or opened, fallback to a dictionary loaded in memory from the YAML file.
+   */
+  private JijiDictionary loadDictionary(File dictionaryFile, AppConfig config) {
+    File snapshotFile = JijiDictionarySnapshot.getSnapshotFile(dictionaryFile);
+    JijiDictionary yamlDict = null;
+    if (!JijiDictionarySnapshot.isUpToDate(snapshotFile, dictionaryFile)) {
+      LOGGER.info("Compiling dictionary(this is done only once)...");
+      yamlDict = new JijiDictionary(dictionaryFile);
+      try {
+        JijiDictionarySnapshot.write(yamlDict, dictionaryFile, snapshotFile);
+      } catch (IOException exc) {
+        LOGGER.warn("Could not write the dictionary snapshot {}, keep the dictionary in memory.", snapshotFile.getName());
+        LOGGER.debug("Got exception", exc);
+        return yamlDict;
+      }
+    }
+
+    try {
+      if (config.getDictionaryMode().equals(AppConfig.DICTIONARY_MODE_PAGED)) {
+        return new JijiDictionary(JijiDictionarySnapshot.open(snapshotFile, config.getDictionaryCacheSize()));
+      }
+      return new JijiDictionary(JijiDictionarySnapshot.map(snapshotFile));
+    } catch (IOException exc) {
+      LOGGER.warn("Could not open the dictionary snapshot {}, load the dictionary in memory.", snapshotFile.getName());
+      LOGGER.debug("Got exception", exc);
+      return yamlDict != null ? yamlDict : new JijiDictionary(dictionaryFile);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package jijimaku.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import jijimaku.AppConfig;
+import jijimaku.models.ServicesParam;
+import jijimaku.services.jijidictionary.JijiDictionary;
+import jijimaku.services.langparser.DictionaryScanParser;
+import jijimaku.utils.SubtitleFile;
+
+
+public class AnnotationServiceTest {
+  private static final String[] CAPTIONS = {
+      "今日は電車で東京に行く",
+      "友達と映画を見た<br />学校の後で",
+      "{\\i1}弁当{\\i0}を忘れた",
+      "雨だ",
+      "nothing to annotate here",
+      "東京の学校、東京の友達"
+  };
+
+  /**
+   * A SRT file with enough captions for several annotation batches.
+   */
+  private static String getSrtFile() {
+    StringBuilder srt = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      srt.append(i + 1).append('\n')
+          .append(String.format("00:%02d:%02d,000 --> 00:%02d:%02d,500%n", i / 60, i % 60, i / 60, i % 60))
+          .append(CAPTIONS[i % CAPTIONS.length]).append(i % 7 == 0 ? "雨" : "").append("\n\n");
+    }
+    return srt.toString();
+  }
+
+  private static AppConfig getConfig(int annotationThreads) throws IOException {
+    Path configFile = Files.createTempFile("config", ".yaml");
+    String yaml = "annotationThreads: " + annotationThreads + "\n"
+        + "captionCacheSize: 0\n"
+        + "highlightColors: ['#FFAAAA', '#AAAAFF', '#AAFFAA']\n"
+        + "ignoreFrequencies: [1]\n";
+    Files.write(configFile, yaml.getBytes(StandardCharsets.UTF_8));
+    try {
+      return new AppConfig(configFile.toFile());
+    } finally {
+      Files.delete(configFile);
+    }
+  }
+
+  private static byte[] annotate(int annotationThreads, JijiDictionary dict) throws Exception {
+    AnnotationService annotationService = new AnnotationService(
+        new ServicesParam(getConfig(annotationThreads), dict, new DictionaryScanParser(dict)));
+    try {
+      SubtitleFile annotated = annotationService.annotateSubtitleFile("test.srt", getSrtFile());
+      assertNotNull(annotated);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      annotated.writeAss(Channels.newChannel(out));
+      return out.toByteArray();
+    } finally {
+      annotationService.close();
+    }
+  }
+
+  @Test
+  public void parallelAnnotationIsTheSameAsSequentialAnnotation() throws Exception {
+    JijiDictionary dict = new JijiDictionary(new File(getClass().getResource("annotation.jmdict.yaml").toURI()));
+    byte[] sequential = annotate(1, dict);
+    for (int annotationThreads : new int[] {2, 4, 8}) {
+      assertArrayEquals("annotationThreads: " + annotationThreads, sequential, annotate(annotationThreads, dict));
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package jijimaku.services.jijidictionary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class JijiDictionaryTest {
+  private static final List<String> PRONUNCIATIONS = Arrays.asList(
+      "でんしゃ", "でん", "でんき", "くるま", "とうきょう", "とうきょうと", "とちょう", "たべる", "くう", "いく", "ゆく", "くる"
+  );
+
+  private static File getFixture() throws URISyntaxException {
+    return getFixture("chunks.jmdict.yaml");
+  }
+
+  private static File getFixture(String name) throws URISyntaxException {
+    return new File(JijiDictionaryTest.class.getResource(name).toURI());
+  }
+
+  /**
+   * Entries as strings, so that a failing comparison shows their values.
+   */
+  private static List<String> describe(List<JijiDictionaryEntry> entries) {
+    List<String> descriptions = new ArrayList<>();
+    for (JijiDictionaryEntry entry : entries) {
+      descriptions.add(entry.getLemmas() + " " + entry.getSenses() + " " + entry.getPronounciation() + " " + entry.getFrequency());
+    }
+    return descriptions;
+  }
+
+  @Test
+  public void chunkedLoadIsTheSameAsSingleChunkLoad() throws Exception {
+    JijiDictionary reference = new JijiDictionary(getFixture(), Integer.MAX_VALUE);
+    assertEquals(12, reference.getLemmas().size());
+
+    // Chunk boundaries fall inside multi-line entries, comments and the dictionary info
+    for (int chunkEntries = 1; chunkEntries <= 4; chunkEntries++) {
+      JijiDictionary chunked = new JijiDictionary(getFixture(), chunkEntries);
+      assertEquals(reference.getLemmas(), chunked.getLemmas());
+      for (String lemma : reference.getLemmas()) {
+        assertEquals("lemma " + lemma + " with chunks of " + chunkEntries,
+            describe(reference.search(lemma)), describe(chunked.search(lemma)));
+      }
+      for (String pronunciation : PRONUNCIATIONS) {
+        assertEquals("pronunciation " + pronunciation + " with chunks of " + chunkEntries,
+            describe(reference.searchByPronunciation(pronunciation)), describe(chunked.searchByPronunciation(pronunciation)));
+      }
+    }
+  }
+
+  @Test
+  public void multiLineEntriesAreParsed() throws Exception {
+    JijiDictionary dict = new JijiDictionary(getFixture(), 1);
+    assertEquals(Arrays.asList("[車] [car, vehicle] [くるま] 1"), describe(dict.search("車")));
+    assertEquals(Arrays.asList("[都庁] [government office\nof the metropolis\n] [とちょう] null"), describe(dict.search("都庁")));
+    assertEquals(Arrays.asList("[電, 電気] [electricity, lightning] [でん, でんき] null"), describe(dict.search("電気")));
+    assertEquals(Arrays.asList("[東京都] [Tokyo metropolis] [とうきょうと] 0"), describe(dict.search("東京都")));
+  }
+
+  @Test
+  public void entriesUsingAliasesAreRejected() throws Exception {
+    for (int chunkEntries : new int[] {1, Integer.MAX_VALUE}) {
+      JijiDictionary dict = new JijiDictionary(getFixture(), chunkEntries);
+      assertEquals(1, dict.search("行く").size());
+      assertTrue(dict.search("逝く").isEmpty());
+      assertEquals(1, dict.searchByPronunciation("いく").size());
+    }
+  }
+
+  @Test
+  public void onlyTheLastDefinitionOfAKeyIsKept() throws Exception {
+    for (int chunkEntries : new int[] {1, 2, 3, Integer.MAX_VALUE}) {
+      JijiDictionary dict = new JijiDictionary(getFixture("duplicates.jmdict.yaml"), chunkEntries);
+      assertEquals(new HashSet<>(Arrays.asList("電車", "東京", "食べる", "行く", "食う")), dict.getLemmas());
+      assertEquals(Arrays.asList("[電車] [train] [でんしゃ, でんしや] null"), describe(dict.search("電車")));
+      assertEquals(describe(dict.search("電車")), describe(dict.searchByPronunciation("でんしゃ")));
+      assertEquals(Arrays.asList("[行く] [go] [ゆく] null"), describe(dict.search("行く")));
+      assertTrue(dict.searchByPronunciation("いく").isEmpty());
+      // The last definition is invalid, so the key has no entry at all
+      assertTrue(dict.search("車").isEmpty());
+      assertTrue(dict.searchByPronunciation("くるま").isEmpty());
+    }
+  }
+
+  @Test
+  public void quotedScalarsGoingOnInColumnZeroAreParsed() throws Exception {
+    for (int chunkEntries : new int[] {1, 2, 3, Integer.MAX_VALUE}) {
+      JijiDictionary dict = new JijiDictionary(getFixture("duplicates.jmdict.yaml"), chunkEntries);
+      assertEquals(Arrays.asList("[東京] [Tokyo, capital: of Japan] [とうきょう] null"), describe(dict.search("東京")));
+      // Quotes in block and plain scalars do not start a quoted scalar
+      assertEquals(Arrays.asList("[食べる] [to \"eat\n] [たべる] null"), describe(dict.search("食べる")));
+      assertEquals(Arrays.asList("[食う] [eat \"informal\" form] [くう] null"), describe(dict.search("食う")));
+    }
+  }
+
+  @Test
+  public void entriesWithEqualValuesAreEqual() throws Exception {
+    JijiDictionary dict = new JijiDictionary(getFixture(), 1);
+    JijiDictionary otherDict = new JijiDictionary(getFixture(), Integer.MAX_VALUE);
+    JijiDictionaryEntry car = new JijiDictionaryEntry(Arrays.asList("車"), 1, Arrays.asList("car", "vehicle"), Arrays.asList("くるま"));
+    assertEquals(car, dict.search("車").get(0));
+    assertEquals(car.hashCode(), dict.search("車").get(0).hashCode());
+    assertEquals(dict.search("車"), otherDict.search("車"));
+    assertNotEquals(car, new JijiDictionaryEntry(Arrays.asList("車"), 1, Arrays.asList("car"), Arrays.asList("くるま")));
+    assertNotEquals(car, new JijiDictionaryEntry(Arrays.asList("車"), null, Arrays.asList("car", "vehicle"), Arrays.asList("くるま")));
+  }
+}
@@ -0,0 +1,76 @@
+package jijimaku.services.langparser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import jijimaku.AppConfig;
+
+
+public class JapaneseParserTest {
+  private static JapaneseParser parser;
+
+  @BeforeClass
+  public static void createParser() throws IOException {
+    Path configFile = Files.createTempFile("config", ".yaml");
+    Files.write(configFile, "parseCache: false\n".getBytes(StandardCharsets.UTF_8));
+    try {
+      parser = new JapaneseParser(new AppConfig(configFile.toFile()));
+    } finally {
+      Files.delete(configFile);
+    }
+  }
+
+  /**
+   * Tokens as text form/canonical form/POS tag.
+   */
+  private static List<String> format(List<LangParser.TextToken> tokens) {
+    return tokens.stream()
+        .map(t -> t.getTextForm() + "/" + t.getCanonicalForm() + "/" + t.getPartOfSpeech())
+        .collect(Collectors.toList());
+  }
+
+  private static List<String> parse(String text) {
+    return format(parser.syntaxicParse(text));
+  }
+
+  @Test
+  public void verbsAfterAVerbOrItsTeFormAreAuxiliary() {
+    assertEquals(Arrays.asList("パン/パン/NOUN", "を/を/ADP", "食べて/食べる/VERB", "いる/いる/AUX"), parse("パンを食べている"));
+    assertEquals(Arrays.asList("見て/見る/VERB", "しまっ/しまう/AUX", "た/た/AUX"), parse("見てしまった"));
+    assertEquals(Arrays.asList("行って/行く/VERB", "くる/くる/AUX"), parse("行ってくる"));
+  }
+
+  @Test
+  public void verbsThatCanBeAuxiliaryAreVerbsElsewhere() {
+    assertEquals(Arrays.asList("テレビ/テレビ/NOUN", "を/を/ADP", "見る/見る/VERB"), parse("テレビを見る"));
+    assertEquals(Arrays.asList("映画/映画/NOUN", "を/を/ADP", "見/見る/VERB", "に/に/ADP", "行き/行く/VERB", "まし/ます/AUX", "た/た/AUX"),
+        parse("映画を見に行きました"));
+  }
+
+  @Test
+  public void adjectivesAfterAnAdjectiveAreAuxiliary() {
+    assertEquals(Arrays.asList("寒く/寒い/ADJ", "ない/ない/AUX"), parse("寒くない"));
+    assertEquals(Arrays.asList("時間/時間/NOUN", "が/が/ADP", "ない/ない/ADJ"), parse("時間がない"));
+  }
+
+  @Test
+  public void textsParsedTogetherGetTheirOwnTokens() {
+    List<String> texts = Arrays.asList("パンを食べている。", "見てしまった、", "、", "", "行ってくる", "東京駅で会いましょう。",
+        "。", "寒くない、時間がない。", "えっ", "はい。", "映画を見に行きました");
+    List<List<LangParser.TextToken>> batchTokens = parser.syntaxicParseAll(texts);
+    assertEquals(texts.size(), batchTokens.size());
+    for (int i = 0; i < texts.size(); i++) {
+      assertEquals(texts.get(i), parse(texts.get(i)), format(batchTokens.get(i)));
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package jijimaku.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+
+/**
+ * Check what CaptionText removes from a caption content, and the raw offsets it keeps for the remaining chars.
+ */
+public class CaptionTextTest {
+
+  @Test
+  public void lineBreaksAreRemoved() {
+    assertEquals("東京駅", CaptionText.normalize("東<br>京<br />駅").getText());
+    assertEquals("東京駅", CaptionText.normalize("東<br/>京<br\t/>駅").getText());
+  }
+
+  @Test
+  public void overrideTagsAreRemoved() {
+    assertEquals("弁当を忘れた", CaptionText.normalize("{\\an8}{\\i1}弁当{\\i0}を忘れた").getText());
+  }
+
+  @Test
+  public void otherTagsAndWhitespaceAreKept() {
+    assertEquals(" <i>はい</i> <bre>", CaptionText.normalize(" <i>はい</i> <bre>").getText());
+    // Tags that are not closed are text
+    assertEquals("<br はい{\\i1", CaptionText.normalize("<br はい{\\i1").getText());
+  }
+
+  @Test
+  public void rawOffsetsPointToTheCharsInTheContent() {
+    CaptionText captionText = CaptionText.normalize("{\\i1}弁当<br />を");
+    assertEquals("弁当を", captionText.getText());
+    assertEquals(5, captionText.getRawOffset(0));
+    assertEquals(6, captionText.getRawOffset(1));
+    assertEquals(13, captionText.getRawOffset(2));
+  }
+}
@@ -0,0 +1,126 @@
+package jijimaku.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+
+/**
+ * Read subtitle files and write them back, and compare with what the subtitleConverter library wrote for the same
+ * files before SubtitleReader and SubtitleWriter replaced it(the roundtrip.*.converter.ass files).
+ * The documented differences with the library are checked apart: captions are written in file order instead of
+ * by start time, the configured style lines are written as they are, ASS override tags are kept
+ * and the library attribution comment is gone.
+ */
+public class SubtitleRoundTripTest {
+  private static final String STYLES = "[V4+ Styles]\n"
+      + "Format: Name, Fontname, Fontsize, PrimaryColour, SecondaryColour, OutlineColour, BackColour, Bold, Italic, Underline, "
+      + "StrikeOut, ScaleX, ScaleY, Spacing, Angle, BorderStyle, Outline, Shadow, Alignment, MarginL, MarginR, MarginV, Encoding\n"
+      + "Style: Definition,Arial,9,&H30FFFFFF,&H00FFFFFF,&H00000000,&H80000000,0,0,0,0,100,100,0,0,1,2,2,7,5,5,5,1\n"
+      + "Style: Default,Arial,28,&H00FFFFFF,&H00FFFFFF,&H00000000,&H80000000,0,0,0,0,100,100,0,0,1,2,2,2,10,10,20,1\n";
+  private static final String CONVERTER_ATTRIBUTION = "; Converted by the Online Subtitle Converter developed by J. David Requejo";
+
+  private List<String> readResource(String name) throws Exception {
+    return Files.readAllLines(Paths.get(getClass().getResource(name).toURI()), StandardCharsets.UTF_8);
+  }
+
+  private static List<String> roundTrip(String fileName, String fileContents) throws Exception {
+    SubtitleFile subtitle = new SubtitleFile(fileName, fileContents, new SubtitleTemplate(STYLES));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    subtitle.writeAss(Channels.newChannel(out));
+    try (BufferedReader reader = new BufferedReader(new StringReader(new String(out.toByteArray(), StandardCharsets.UTF_8)))) {
+      return reader.lines().collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Write a fixture back and check it against the library output.
+   * @return the Dialogue lines written
+   */
+  private List<String> checkRoundTrip(String fileName) throws Exception {
+    List<String> lines = roundTrip(fileName, String.join("\n", readResource(fileName)));
+    List<String> converterLines = readResource(fileName + ".converter.ass");
+
+    // The library attribution comment is gone
+    assertTrue(converterLines.remove(CONVERTER_ATTRIBUTION));
+    assertFalse(lines.contains(CONVERTER_ATTRIBUTION));
+
+    // The style lines are written as they are configured, the library wrote them again from what it understood
+    // of them(losing their margins and transparency). Everything else in the header is the same.
+    assertEquals(getStyleLines(Arrays.asList(STYLES.split("\n"))), getStyleLines(lines));
+    assertEquals(getHeaderWithoutStyleLines(converterLines), getHeaderWithoutStyleLines(lines));
+
+    // The library sorted the captions by start time and dropped their override tags when reading them
+    List<String> dialogues = getDialogues(lines);
+    List<String> sortedDialogues = dialogues.stream()
+        .sorted(Comparator.comparing(SubtitleRoundTripTest::getStartTime))
+        .map(SubtitleRoundTripTest::withoutOverrideTags)
+        .collect(Collectors.toList());
+    assertEquals(getDialogues(converterLines).stream().map(SubtitleRoundTripTest::withoutOverrideTags).collect(Collectors.toList()),
+        sortedDialogues);
+    assertEquals(converterLines.get(converterLines.size() - 1), lines.get(lines.size() - 1));
+    return dialogues;
+  }
+
+  private static List<String> getStyleLines(List<String> lines) {
+    return lines.stream().filter(line -> line.startsWith("Style:")).collect(Collectors.toList());
+  }
+
+  private static List<String> getHeaderWithoutStyleLines(List<String> lines) {
+    return lines.subList(0, lines.indexOf("[Events]")).stream()
+        .filter(line -> !line.startsWith("Style:"))
+        .collect(Collectors.toList());
+  }
+
+  private static List<String> getDialogues(List<String> lines) {
+    return lines.stream().filter(line -> line.startsWith("Dialogue:")).collect(Collectors.toList());
+  }
+
+  private static String getStartTime(String dialogue) {
+    return dialogue.split(",")[1];
+  }
+
+  private static String withoutOverrideTags(String dialogue) {
+    return dialogue.replaceAll("\\{[^}]*\\}", "");
+  }
+
+  @Test
+  public void assFileIsWrittenLikeTheLibraryDid() throws Exception {
+    List<String> dialogues = checkRoundTrip("roundtrip.ass");
+    // Captions are in file order
+    assertEquals(Arrays.asList("0:00:00.01", "0:00:01.00", "0:00:05.00", "0:00:04.00", "0:00:08.25"),
+        dialogues.stream().map(SubtitleRoundTripTest::getStartTime).collect(Collectors.toList()));
+    // Override tags are kept
+    assertTrue(dialogues.get(2).endsWith(",Default,,0000,0000,0000,,{\\i1}弁当{\\i0}を忘れた"));
+    assertTrue(dialogues.get(3).endsWith(",Default,,0000,0000,0000,,{\\an8}東京駅"));
+  }
+
+  @Test
+  public void srtFileIsWrittenLikeTheLibraryDid() throws Exception {
+    List<String> dialogues = checkRoundTrip("roundtrip.srt");
+    // Captions are in file order
+    assertEquals(Arrays.asList("0:00:00.01", "0:00:02.00", "0:00:06.50", "0:00:05.00"),
+        dialogues.stream().map(SubtitleRoundTripTest::getStartTime).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void noJijimakuMarkOverACaptionAtZero() throws Exception {
+    List<String> lines = roundTrip("zero.srt", "1\n00:00:00,000 --> 00:00:01,000\nはい\n\n2\n00:00:02,000 --> 00:00:03,000\nいいえ\n");
+    assertEquals(Arrays.asList("Dialogue: 0,0:00:00.00,0:00:01.00,Default,,0000,0000,0000,,はい",
+        "Dialogue: 0,0:00:02.00,0:00:03.00,Default,,0000,0000,0000,,いいえ"), getDialogues(lines));
+  }
+}